@@ -0,0 +1,64 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.extension.Extension;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing and building command templates, which runs for every configured command on load and for every
+ * submitted argument form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandTemplateBenchmark {
+
+    private static final Map<String, String> COMMANDS = Map.of(
+            "literal", "/spawn",
+            "input", "sethome {\"Home Name:\", Input}",
+            "dropdown", "vot {\"Choose an option:\", Dropdown, \"Day, Night, Clear, Sun, Raining, Thunder\"}",
+            "mixed", "pay {\"Player\", PLAYER_LIST} {\"Amount\", Slider, 1, 1000, 1} {\"Confirm\", Toggle}");
+
+    @Param({"literal", "input", "dropdown", "mixed"})
+    public String shape;
+
+    private Extension extension;
+    private String command;
+    private String argument;
+    private MenuManager.CommandTemplate template;
+    private List<String> values;
+
+    @Setup
+    public void setUp() {
+        extension = StandIns.extension(Path.of("."));
+        command = COMMANDS.get(shape);
+        Matcher matcher = Pattern.compile("\\{([^}]+)}").matcher(command);
+        argument = matcher.find() ? matcher.group(1) : "\"Value\", Input";
+        template = MenuManager.CommandTemplate.parse(command, extension);
+        values = List.of("Steve", "250", "true").subList(0, template.arguments.length);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return MenuManager.CommandTemplate.parse(command, extension);
+    }
+
+    @Benchmark
+    public String build() {
+        return template.build(values);
+    }
+
+    @Benchmark
+    public Object parseArgument() {
+        return MenuManager.Argument.parse(argument, extension);
+    }
+}
@@ -0,0 +1,58 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.connection.GeyserConnection;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Opening the Common menu end to end: ranking the player's usage, resolving labels and building the
+ * form. The manager loads the shipped menus.yml and a snapshot holding the player's history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommonMenuBenchmark {
+
+    private Path dataFolder;
+    private MenuManager manager;
+    private GeyserConnection connection;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataFolder = Files.createTempDirectory("bmenus-bench");
+        UUID uuid = UUID.randomUUID();
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage usage = UsageData.records(dictionary, 1, 50).values().iterator().next();
+        UsageSnapshot.write(dataFolder.resolve("usage.dat"), null, Map.of(uuid, usage), 0L, dictionary, 0);
+
+        manager = new MenuManager(StandIns.extension(dataFolder));
+        manager.loadConfig();
+        connection = StandIns.connection("Steve", uuid);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manager.shutdown();
+        try (Stream<Path> files = Files.walk(dataFolder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void openCommon() {
+        manager.openMenu(connection, "common");
+    }
+}
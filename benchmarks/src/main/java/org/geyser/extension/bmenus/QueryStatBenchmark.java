@@ -0,0 +1,63 @@
+package org.geyser.extension.bmenus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting player names from a full stat response as sent by a vanilla server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryStatBenchmark {
+
+    @Param({"0", "20", "200"})
+    public int players;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // padding, then key/value pairs, then the player section
+        write(out, "splitnum");
+        out.write(0x80);
+        out.write(0);
+        String[] values = {
+                "hostname", "A Minecraft Server", "gametype", "SMP", "game_id", "MINECRAFT",
+                "version", "1.21.4", "plugins", "Paper on 1.21.4: BMenus 1.0.0; Geyser 2.8.3", "map", "world",
+                "numplayers", Integer.toString(players), "maxplayers", "500", "hostport", "25565",
+                "hostip", "127.0.0.1"
+        };
+        for (String value : values) {
+            write(out, value);
+        }
+        out.write(0);
+        out.write(1);
+        write(out, "player_");
+        out.write(0);
+        for (int i = 0; i < players; i++) {
+            write(out, "Player_" + i);
+        }
+        out.write(0);
+        payload = out.toByteArray();
+    }
+
+    @Benchmark
+    public List<String> extract() {
+        return QueryClient.extractPlayersFromStat(ByteBuffer.wrap(payload));
+    }
+
+    private static void write(ByteArrayOutputStream out, String value) {
+        out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+    }
+}
@@ -0,0 +1,95 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.cumulus.component.ButtonComponent;
+import org.geysermc.cumulus.form.SimpleForm;
+import org.geysermc.geyser.api.connection.GeyserConnection;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Building a simple menu form per open from the menu's button texts, as before menus were prebuilt,
+ * against copying button components that were created once at config load. {@code openMain} measures
+ * the whole open through the manager with the shipped menus.yml. Run with {@code -prof gc} to compare
+ * allocation per open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleFormBenchmark {
+
+    @Param({"4", "12"})
+    public int buttons;
+
+    private String title;
+    private String content;
+    private List<String> texts;
+    private List<ButtonComponent> components;
+
+    private Path dataFolder;
+    private MenuManager manager;
+    private GeyserConnection connection;
+
+    @Setup
+    public void setUp() throws IOException {
+        title = "BM Commands";
+        content = "Pick a category";
+        texts = new ArrayList<>(buttons);
+        components = new ArrayList<>(buttons);
+        for (int i = 0; i < buttons; i++) {
+            String text = "Category " + i;
+            texts.add(text);
+            components.add(ButtonComponent.of(text));
+        }
+        components = List.copyOf(components);
+
+        dataFolder = Files.createTempDirectory("bmenus-bench");
+        manager = new MenuManager(StandIns.extension(dataFolder));
+        manager.loadConfig();
+        connection = StandIns.connection("Steve", UUID.randomUUID());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manager.shutdown();
+        try (Stream<Path> files = Files.walk(dataFolder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public SimpleForm perOpen() {
+        SimpleForm.Builder builder = SimpleForm.builder().title(title).content(content);
+        for (String text : texts) {
+            builder.button(text);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public SimpleForm prebuilt() {
+        SimpleForm.Builder builder = SimpleForm.builder().title(title).content(content);
+        for (ButtonComponent component : components) {
+            builder.button(component);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public void openMain() {
+        manager.openMenu(connection, "main");
+    }
+}
@@ -0,0 +1,79 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.GeyserApi;
+import org.geysermc.geyser.api.connection.GeyserConnection;
+import org.geysermc.geyser.api.extension.Extension;
+import org.geysermc.geyser.api.extension.ExtensionLogger;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Offline stand-ins for the Geyser objects BMenus talks to, so the benchmarks run without a proxy or a
+ * network. Every method that is not answered explicitly does nothing and returns {@code null},
+ * {@code false} or zero.
+ */
+final class StandIns {
+
+    private StandIns() {
+    }
+
+    /**
+     * An extension with a silent logger, no online players and no remote server.
+     */
+    static Extension extension(Path dataFolder) {
+        ExtensionLogger logger = proxy(ExtensionLogger.class, Map.of());
+        GeyserApi api = proxy(GeyserApi.class, Map.of("onlineConnections", args -> List.of()));
+        return new Extension() {
+            @Override
+            public Path dataFolder() {
+                return dataFolder;
+            }
+
+            @Override
+            public ExtensionLogger logger() {
+                return logger;
+            }
+
+            @Override
+            public GeyserApi geyserApi() {
+                return api;
+            }
+        };
+    }
+
+    /**
+     * A connection that accepts and drops every form and command.
+     */
+    static GeyserConnection connection(String name, UUID uuid) {
+        return proxy(GeyserConnection.class, Map.of("name", args -> name, "playerUuid", args -> uuid));
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        Object instance = Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[]{type},
+                (self, method, args) -> {
+                    Function<Object[], Object> answer = answers.get(method.getName());
+                    if (answer != null) {
+                        return answer.apply(args);
+                    }
+                    return switch (method.getName()) {
+                        case "hashCode" -> System.identityHashCode(self);
+                        case "equals" -> self == args[0];
+                        case "toString" -> type.getSimpleName() + " stand-in";
+                        default -> defaultValue(method.getReturnType());
+                    };
+                });
+        return type.cast(instance);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        // the zero value of any primitive type, boxed
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+}
@@ -0,0 +1,66 @@
+package org.geyser.extension.bmenus;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates reproducible usage histories shaped like a live server: a shared pool of commands with a
+ * few very popular ones and a long tail.
+ */
+final class UsageData {
+
+    static final int COMMAND_POOL = 200;
+
+    private UsageData() {
+    }
+
+    static PlayerUsage.Settings settings(CommandDictionary dictionary, int maxCommands) {
+        return settings(dictionary, maxCommands, PlayerUsage.Ranking.COUNT);
+    }
+
+    static PlayerUsage.Settings settings(CommandDictionary dictionary, int maxCommands, PlayerUsage.Ranking ranking) {
+        List<String> defaults = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            defaults.add("/default " + i);
+        }
+        return new PlayerUsage.Settings(dictionary, defaults, maxCommands, TimeUnit.DAYS.toMillis(7), ranking,
+                TimeUnit.DAYS.toMillis(3), 0.05f);
+    }
+
+    /**
+     * Returns command ids drawn from {@code distinct} commands, skewed towards the first ones.
+     */
+    static int[] skewedIds(CommandDictionary dictionary, int distinct, int length, long seed) {
+        int[] pool = new int[distinct];
+        for (int i = 0; i < distinct; i++) {
+            pool[i] = dictionary.intern("/command " + i + " {\"Target\", PLAYER_LIST}");
+        }
+        Random random = new Random(seed);
+        int[] ids = new int[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = pool[(int) (distinct * Math.pow(random.nextDouble(), 3))];
+        }
+        return ids;
+    }
+
+    /**
+     * Builds {@code players} records with about {@code commands} distinct entries each.
+     */
+    static Map<UUID, PlayerUsage> records(CommandDictionary dictionary, int players, int commands) {
+        PlayerUsage.Settings settings = settings(dictionary, Math.max(commands, 1));
+        int[] ids = skewedIds(dictionary, COMMAND_POOL, 1 << 16, 42L);
+        Random random = new Random(7L);
+        long now = System.currentTimeMillis();
+        Map<UUID, PlayerUsage> records = new HashMap<>(players * 2);
+        int next = 0;
+        for (int player = 0; player < players; player++) {
+            PlayerUsage usage = PlayerUsage.withDefaults(settings);
+            for (int i = 0; i < commands * 3; i++) {
+                long time = now - random.nextInt((int) TimeUnit.DAYS.toMillis(3));
+                usage.record(ids[next++ & (ids.length - 1)], time, settings, null);
+            }
+            records.put(new UUID(random.nextLong(), random.nextLong()), usage);
+        }
+        return records;
+    }
+}
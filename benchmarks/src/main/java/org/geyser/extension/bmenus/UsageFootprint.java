@@ -0,0 +1,64 @@
+package org.geyser.extension.bmenus;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Prints the heap retained by fully loaded usage records, which JMH does not measure:
+ * {@code java -cp benchmarks/target/benchmarks.jar org.geyser.extension.bmenus.UsageFootprint [players] [commands]}.
+ * Defaults to 100,000 players with 20 commands each.
+ */
+public final class UsageFootprint {
+
+    private UsageFootprint() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Path file = Files.createTempFile("bmenus-footprint", ".dat");
+        try {
+            writeSnapshot(file, players, commands);
+
+            long before = usedHeap();
+            Map<UUID, PlayerUsage> loaded = new HashMap<>(players * 2);
+            CommandDictionary dictionary = new CommandDictionary();
+            UsageSnapshot.open(file, dictionary).loadAll(loaded);
+            long retained = usedHeap() - before;
+
+            System.out.printf("%,d players x %d commands: %.1f MB retained, %,d bytes per player%n",
+                    loaded.size(), commands, retained / (1024.0 * 1024.0), retained / Math.max(1, loaded.size()));
+            Reference.reachabilityFence(loaded);
+            Reference.reachabilityFence(dictionary);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void writeSnapshot(Path file, int players, int commands) throws IOException {
+        CommandDictionary dictionary = new CommandDictionary();
+        UsageSnapshot.write(file, null, UsageData.records(dictionary, players, commands), 0L, dictionary, 0);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds let the collector settle; keep the lowest reading
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,54 @@
+package org.geyser.extension.bmenus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording a command and reading the top ten for the Common menu, at different {@code max-commands}
+ * limits and in both ranking modes. Four times as many commands are in use as fit, so recording keeps displacing defaults and
+ * trimming the tail.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsageRankingBenchmark {
+
+    @Param({"10", "50", "200"})
+    public int maxCommands;
+
+    @Param({"COUNT", "FRECENCY"})
+    public PlayerUsage.Ranking ranking;
+
+    private PlayerUsage.Settings settings;
+    private PlayerUsage usage;
+    private int[] sequence;
+    private int next;
+    private long now;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        CommandDictionary dictionary = new CommandDictionary();
+        settings = UsageData.settings(dictionary, maxCommands, ranking);
+        sequence = UsageData.skewedIds(dictionary, maxCommands * 4, 4096, 42L);
+        usage = PlayerUsage.withDefaults(settings);
+        now = System.currentTimeMillis();
+        for (int id : sequence) {
+            usage.record(id, now++, settings, null);
+        }
+    }
+
+    @Benchmark
+    public boolean record() {
+        int id = sequence[next++ & (sequence.length - 1)];
+        return usage.record(id, now++, settings, null);
+    }
+
+    @Benchmark
+    public int[] top() {
+        return usage.top(10, now, settings);
+    }
+}
@@ -0,0 +1,73 @@
+package org.geyser.extension.bmenus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the binary usage snapshot. {@code save} is what compaction pays per flush,
+ * {@code loadAll} is a full import and {@code loadOne} is the on-demand lookup when a player joins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UsageSnapshotBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int players;
+
+    private Path folder;
+    private Path savePath;
+    private Path loadPath;
+    private CommandDictionary dictionary;
+    private Map<UUID, PlayerUsage> records;
+    private UUID[] uuids;
+    private UsageSnapshot.Index index;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("bmenus-bench");
+        savePath = folder.resolve("save.dat");
+        loadPath = folder.resolve("load.dat");
+        dictionary = new CommandDictionary();
+        records = UsageData.records(dictionary, players, 20);
+        uuids = records.keySet().toArray(new UUID[0]);
+        UsageSnapshot.write(loadPath, null, records, 0L, dictionary, 0);
+        index = UsageSnapshot.open(loadPath, new CommandDictionary());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(savePath);
+        Files.deleteIfExists(loadPath);
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        UsageSnapshot.write(savePath, null, records, 0L, dictionary, 0);
+    }
+
+    @Benchmark
+    public Object loadAll() throws IOException {
+        Map<UUID, PlayerUsage> loaded = new HashMap<>(players * 2);
+        UsageSnapshot.open(loadPath, new CommandDictionary()).loadAll(loaded);
+        return loaded;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object loadOne() {
+        UUID uuid = uuids[next++ % uuids.length];
+        return index.load(uuid);
+    }
+}
@@ -1,7 +1,12 @@
 package org.geyser.extension.bmenus;
 
 import org.geysermc.event.subscribe.Subscribe;
+import org.geysermc.geyser.api.command.Command;
+import org.geysermc.geyser.api.command.CommandSource;
 import org.geysermc.geyser.api.event.bedrock.ClientEmoteEvent;
+import org.geysermc.geyser.api.event.bedrock.SessionDisconnectEvent;
+import org.geysermc.geyser.api.event.bedrock.SessionLoginEvent;
+import org.geysermc.geyser.api.event.lifecycle.GeyserDefineCommandsEvent;
 import org.geysermc.geyser.api.event.lifecycle.GeyserPostInitializeEvent;
 import org.geysermc.geyser.api.event.lifecycle.GeyserShutdownEvent;
 import org.geysermc.geyser.api.extension.Extension;
@@ -16,11 +21,63 @@ public class BMenusExtension implements Extension {
         menuManager.loadConfig();
     }
 
+    /**
+     * Registers {@code /bmenus reload}, which re-reads menus.yml without restarting Geyser, and
+     * {@code /bmenus stats}, which summarizes the metrics.
+     */
+    @Subscribe
+    public void onDefineCommands(GeyserDefineCommandsEvent event) {
+        event.register(Command.builder(this)
+                .source(CommandSource.class)
+                .name("reload")
+                .description("Reloads menus.yml")
+                .permission("bmenus.command.reload")
+                .suggestedOpOnly(true)
+                .executor((source, command, args) -> {
+                    if (menuManager == null) {
+                        source.sendMessage("BMenus has not finished starting");
+                        return;
+                    }
+                    menuManager.reload(source::sendMessage);
+                })
+                .build());
+        event.register(Command.builder(this)
+                .source(CommandSource.class)
+                .name("stats")
+                .description("Shows BMenus metrics")
+                .permission("bmenus.command.stats")
+                .suggestedOpOnly(true)
+                .executor((source, command, args) -> {
+                    if (menuManager == null) {
+                        source.sendMessage("BMenus has not finished starting");
+                        return;
+                    }
+                    menuManager.stats().forEach(source::sendMessage);
+                })
+                .build());
+    }
+
+    @Subscribe
+    public void onSessionLogin(SessionLoginEvent event) {
+        if (menuManager != null) {
+            menuManager.preloadUsage(event.connection());
+            menuManager.addOnlinePlayer(event.connection());
+        }
+    }
+
+    @Subscribe
+    public void onSessionDisconnect(SessionDisconnectEvent event) {
+        if (menuManager != null) {
+            menuManager.releaseUsage(event.connection());
+            menuManager.removeOnlinePlayer(event.connection());
+        }
+    }
+
     @Subscribe
     public void onClientEmote(ClientEmoteEvent event) {
         event.setCancelled(true);
         if (menuManager != null) {
-            menuManager.openMenu(event.connection(), "main");
+            menuManager.triggerMainMenu(event.connection());
         }
     }
 
@@ -30,4 +87,4 @@ public class BMenusExtension implements Extension {
             menuManager.shutdown();
         }
     }
-}
\ No newline at end of file
+}
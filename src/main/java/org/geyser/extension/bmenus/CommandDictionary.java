@@ -0,0 +1,122 @@
+package org.geyser.extension.bmenus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Interns command strings to dense int ids shared by every player's usage record.
+ * <p>
+ * Commands built from typed arguments would otherwise accumulate forever, so {@link #reclaim} frees the
+ * ids of commands nothing references any more and later commands reuse them. An id is never freed in the
+ * reclaim interval in which it was last interned, so a caller has at least one full interval to store it
+ * in a usage record or the configuration, where the next reclaim finds it. Reading a command or label by
+ * id is lock-free; interning synchronizes.
+ */
+final class CommandDictionary {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile String[] commands = new String[256];
+    private volatile String[] labels = new String[256];
+    /** Indexed by id: the reclaim interval in which the command was last interned. */
+    private int[] interned = new int[256];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int size;
+    private int interval;
+
+    /**
+     * Returns the id of a command, assigning a free id if it is not currently known.
+     */
+    synchronized int intern(String command) {
+        Integer known = ids.get(command);
+        int id;
+        if (known != null) {
+            id = known;
+        } else {
+            if (freeCount > 0) {
+                id = free[--freeCount];
+            } else {
+                if (size == commands.length) {
+                    commands = Arrays.copyOf(commands, size * 2);
+                    labels = Arrays.copyOf(labels, size * 2);
+                    interned = Arrays.copyOf(interned, size * 2);
+                }
+                id = size++;
+            }
+            commands[id] = command;
+            ids.put(command, id);
+        }
+        interned[id] = interval;
+        return id;
+    }
+
+    String command(int id) {
+        return commands[id];
+    }
+
+    /**
+     * Returns one more than the highest id handed out so far.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of commands currently interned.
+     */
+    synchronized int count() {
+        return size - freeCount;
+    }
+
+    /**
+     * Frees every id that is not set in {@code live} and was not interned since the previous call, then
+     * starts a new interval. Called by the saver thread after compaction.
+     *
+     * @return the number of ids freed
+     */
+    synchronized int reclaim(BitSet live) {
+        String[] commands = this.commands;
+        String[] labels = this.labels;
+        int freed = 0;
+        for (int id = 0; id < size; id++) {
+            if (commands[id] == null || interned[id] == interval || live.get(id)) {
+                continue;
+            }
+            ids.remove(commands[id]);
+            commands[id] = null;
+            if (id < labels.length) {
+                labels[id] = null;
+            }
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = id;
+            freed++;
+        }
+        interval++;
+        return freed;
+    }
+
+    /**
+     * Returns the display label of a command, computing it once with {@code labeler}.
+     */
+    String label(int id, Function<String, String> labeler) {
+        String[] cache = labels;
+        String label = cache[id];
+        if (label == null) {
+            label = labeler.apply(commands[id]);
+            cache[id] = label;
+        }
+        return label;
+    }
+
+    /**
+     * Forgets cached labels, for example after templates were recompiled.
+     */
+    synchronized void clearLabels() {
+        labels = new String[commands.length];
+    }
+}
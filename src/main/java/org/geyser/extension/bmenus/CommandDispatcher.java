@@ -0,0 +1,153 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.connection.GeyserConnection;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends commands on behalf of players, in order per player.
+ * <p>
+ * Every player has a queue of pending commands. A macro adds all of its commands at once; each one is
+ * sent after the configured delay has passed since the previous one, by a task on a scheduler used
+ * for nothing else, so no thread ever sleeps between commands and no other work delays them. Commands
+ * added while a macro is still running wait for it to finish, so a single command clicked in between
+ * never overtakes the rest of the macro.
+ * <p>
+ * A queue belongs to one connection. Commands for a connection that was removed are dropped, so a task
+ * still running after the player left cannot bring back a queue for the dead connection, and a player
+ * who joins again always gets a queue of their own.
+ */
+final class CommandDispatcher {
+
+    private final Map<UUID, Queue> queues = new ConcurrentHashMap<>();
+    // held weakly so connections that were removed are not kept alive by this
+    private final Set<GeyserConnection> closed = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+    private final ScheduledExecutorService scheduler;
+    private final BiConsumer<GeyserConnection, String> sender;
+
+    /**
+     * @param sender sends one command; called on the thread that queued it or on the scheduler
+     */
+    CommandDispatcher(ScheduledExecutorService scheduler, BiConsumer<GeyserConnection, String> sender) {
+        this.scheduler = scheduler;
+        this.sender = sender;
+    }
+
+    /**
+     * Queues commands for the player. The first one is sent right away if nothing is pending; the rest
+     * follow {@code delayMillis} apart. Nothing is sent for a connection that was already removed.
+     */
+    void dispatch(GeyserConnection connection, List<String> commands, long delayMillis) {
+        Queue queue = queues.compute(connection.playerUuid(), (id, existing) -> {
+            if (closed.contains(connection) || existing != null && existing.connection == connection) {
+                return existing;
+            }
+            if (existing != null) {
+                // left without being removed; its connection will not take commands any more
+                synchronized (existing) {
+                    existing.pending.clear();
+                }
+            }
+            return new Queue(connection);
+        });
+        if (queue == null || queue.connection != connection) {
+            return;
+        }
+        boolean start;
+        synchronized (queue) {
+            for (int i = 0; i < commands.size(); i++) {
+                // the delay applies between the commands of a macro, not before its first one
+                queue.pending.add(new Step(commands.get(i), i == 0 ? 0L : delayMillis));
+            }
+            start = !queue.running;
+            queue.running = true;
+        }
+        if (start) {
+            drain(queue);
+        }
+    }
+
+    /**
+     * Drops the commands still queued for a player who disconnected.
+     */
+    void remove(GeyserConnection connection) {
+        // closed before the queue is removed, so a dispatch that runs in between cannot add it back
+        closed.add(connection);
+        Queue queue = queues.get(connection.playerUuid());
+        // a queue of another connection belongs to the same player having joined again
+        if (queue != null && queue.connection == connection && queues.remove(connection.playerUuid(), queue)) {
+            synchronized (queue) {
+                queue.pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends queued commands until the queue is empty or the next one has to wait.
+     */
+    private void drain(Queue queue) {
+        while (true) {
+            Step step;
+            synchronized (queue) {
+                step = queue.pending.peek();
+                if (step == null) {
+                    queue.running = false;
+                    return;
+                }
+            }
+            if (step.delayMillis > 0 && !queue.waited) {
+                queue.waited = true;
+                try {
+                    scheduler.schedule(() -> drain(queue), step.delayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shutting down; send the rest without waiting
+                }
+            }
+            synchronized (queue) {
+                queue.pending.poll();
+            }
+            queue.waited = false;
+            try {
+                sender.accept(queue.connection, step.command);
+            } catch (RuntimeException e) {
+                // the connection is most likely gone; the rest of the macro would fail the same way
+                synchronized (queue) {
+                    queue.pending.clear();
+                    queue.running = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private record Step(String command, long delayMillis) {
+    }
+
+    /**
+     * The pending commands of one player. {@code running} is set while a thread or a scheduled task owns
+     * the queue; only that owner reads {@code waited}.
+     */
+    private static final class Queue {
+        final GeyserConnection connection;
+        final ArrayDeque<Step> pending = new ArrayDeque<>();
+        boolean running;
+        boolean waited;
+
+        Queue(GeyserConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
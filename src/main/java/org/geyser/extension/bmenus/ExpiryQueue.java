@@ -0,0 +1,94 @@
+package org.geyser.extension.bmenus;
+
+import java.util.*;
+
+/**
+ * Resident usage records ordered by when their oldest entry can next expire, in buckets of
+ * {@link #BUCKET_MILLIS}.
+ * <p>
+ * Each record remembers the time it is queued for, so queueing from the click path is a compare-and-set
+ * that only takes this queue's lock when the record has to be checked earlier than planned, which
+ * happens about once per record. A record can then sit in more than one bucket; {@link #due} only
+ * returns it from the bucket matching its current time and skips the stale copies.
+ */
+final class ExpiryQueue {
+
+    static final long BUCKET_MILLIS = 10_000L;
+
+    private final NavigableMap<Long, ArrayDeque<PlayerUsage>> buckets = new TreeMap<>();
+    private int size;
+
+    /**
+     * Queues the record for its next expiry check, if that is earlier than the one it is queued for.
+     */
+    void schedule(PlayerUsage record) {
+        schedule(record, record.nextExpiry());
+    }
+
+    /**
+     * Queues the record to be checked at {@code time}, if that is earlier than the time it is queued for.
+     */
+    void schedule(PlayerUsage record, long time) {
+        if (time == Long.MAX_VALUE || !record.sweepBy(time)) {
+            return;
+        }
+        synchronized (this) {
+            buckets.computeIfAbsent(bucket(time), key -> new ArrayDeque<>()).add(record);
+            size++;
+        }
+    }
+
+    /**
+     * Removes and returns up to {@code limit} records whose expiry check is due at {@code now}. The caller
+     * checks them and queues them again with {@link #schedule}.
+     */
+    synchronized List<PlayerUsage> due(long now, int limit) {
+        List<PlayerUsage> due = new ArrayList<>(Math.min(limit, size));
+        long current = bucket(now);
+        while (due.size() < limit) {
+            Map.Entry<Long, ArrayDeque<PlayerUsage>> first = buckets.firstEntry();
+            if (first == null || first.getKey() > current) {
+                break;
+            }
+            ArrayDeque<PlayerUsage> records = first.getValue();
+            while (due.size() < limit && !records.isEmpty()) {
+                PlayerUsage record = records.poll();
+                size--;
+                long time = record.sweepAt();
+                if (time != Long.MAX_VALUE && bucket(time) == first.getKey() && record.claimSweep(time)) {
+                    due.add(record);
+                }
+            }
+            if (records.isEmpty()) {
+                buckets.pollFirstEntry();
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Takes an evicted record out of the queue so it can be collected.
+     */
+    synchronized void remove(PlayerUsage record) {
+        long time = record.sweepAt();
+        if (time == Long.MAX_VALUE || !record.claimSweep(time)) {
+            return;
+        }
+        Long key = bucket(time);
+        ArrayDeque<PlayerUsage> records = buckets.get(key);
+        if (records != null && records.remove(record)) {
+            size--;
+            if (records.isEmpty()) {
+                buckets.remove(key);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private static long bucket(long time) {
+        return Math.floorDiv(time, BUCKET_MILLIS);
+    }
+}
@@ -0,0 +1,198 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.extension.Extension;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps usage in the extension data folder: increments go to the {@link UsageJournal} and are
+ * periodically folded into the binary {@link UsageSnapshot}, usage.dat, which is memory-mapped so
+ * non-resident players load with a binary search. Sequence numbers are journal segment ids; a segment
+ * is persisted once it has been folded into the snapshot.
+ */
+final class FileUsageStore implements UsageStore {
+
+    private final Extension extension;
+    private final CommandDictionary dictionary;
+    private final Path usagePath;
+    private final Path legacyUsagePath;
+    private final UsageJournal journal;
+    private final Metrics.Histogram compactTime;
+    private final Metrics.Histogram snapshotSize;
+    private volatile UsageSnapshot.Index snapshotIndex;
+    /** The snapshot replaced by the last compaction; a load that started before the swap may still use it. */
+    private UsageSnapshot.Index retiredIndex;
+    private volatile long foldedSegment;
+    private volatile long compactBytes = 4L * 1024 * 1024;
+    private volatile int backups = 3;
+
+    FileUsageStore(Extension extension, CommandDictionary dictionary, Metrics metrics) {
+        this.extension = extension;
+        this.dictionary = dictionary;
+        this.usagePath = extension.dataFolder().resolve("usage.dat");
+        this.legacyUsagePath = extension.dataFolder().resolve("usage.yml");
+        this.journal = new UsageJournal(extension, extension.dataFolder());
+        this.compactTime = metrics.histogram("usage.compact.us");
+        this.snapshotSize = metrics.histogram("usage.snapshot.bytes");
+    }
+
+    void configure(UsageJournal.FsyncPolicy fsync, long fsyncIntervalMillis, long compactBytes, int backups) {
+        journal.configure(fsync, fsyncIntervalMillis);
+        this.compactBytes = compactBytes;
+        this.backups = backups;
+    }
+
+    /**
+     * Maps the usage snapshot for on-demand loading. Journal segments left over from an unclean
+     * shutdown, or a usage.yml from an earlier version, are folded into a new snapshot first so that
+     * every non-resident player can be served straight from the snapshot.
+     */
+    @Override
+    public void open(PlayerUsage.Settings settings) throws IOException {
+        snapshotIndex = null;
+        int backups = this.backups;
+        UsageSnapshot.Index previous = openSnapshot(backups);
+        boolean restored = previous != null && Files.notExists(usagePath);
+        Map<UUID, PlayerUsage> changed = new HashMap<>();
+        long folded = previous != null ? previous.foldedSegment() : 0L;
+        boolean legacy = previous == null && Files.exists(legacyUsagePath);
+        if (legacy) {
+            folded = UsageSnapshot.readYaml(legacyUsagePath, changed, dictionary);
+        }
+
+        long replayed = journal.open(folded, (uuid, command, time) -> replay(changed, previous, uuid, command, time, settings));
+        UsageSnapshot.Index base = previous;
+        if (legacy || restored || replayed > folded) {
+            UsageSnapshot.write(usagePath, previous, changed, replayed, dictionary, backups);
+            journal.deleteUpTo(UsageSnapshot.oldestFoldedSegment(usagePath, backups, replayed));
+            base = UsageSnapshot.open(usagePath, dictionary);
+            if (legacy) {
+                Files.move(legacyUsagePath, legacyUsagePath.resolveSibling("usage.yml.migrated"),
+                        StandardCopyOption.REPLACE_EXISTING);
+                extension.logger().info("Migrated usage.yml to the binary usage.dat format");
+            }
+        }
+        snapshotIndex = base;
+        foldedSegment = replayed;
+    }
+
+    /**
+     * Opens usage.dat, or the newest intact backup if it is missing or cannot be read. An unreadable
+     * usage.dat is renamed to usage.dat.corrupt so it is neither retried nor rotated into the backups.
+     * The journal segments after a backup are kept, so restoring one loses no usage.
+     */
+    private UsageSnapshot.Index openSnapshot(int backups) throws IOException {
+        for (int generation = 0; generation <= backups; generation++) {
+            Path path = UsageSnapshot.backup(usagePath, generation);
+            if (Files.notExists(path)) {
+                continue;
+            }
+            try {
+                UsageSnapshot.Index index = UsageSnapshot.open(path, dictionary);
+                if (generation > 0) {
+                    extension.logger().warning("Restored usage data from " + path.getFileName());
+                }
+                return index;
+            } catch (IOException e) {
+                extension.logger().error("Unable to read usage snapshot " + path.getFileName(), e);
+                if (generation == 0) {
+                    Files.move(usagePath, usagePath.resolveSibling(usagePath.getFileName() + ".corrupt"),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void replay(Map<UUID, PlayerUsage> changed, UsageSnapshot.Index base, UUID uuid,
+                               String command, long time, PlayerUsage.Settings settings) {
+        changed.computeIfAbsent(uuid, id -> {
+            PlayerUsage record = base == null ? null : base.load(id);
+            return record != null ? record : PlayerUsage.withDefaults(settings);
+        }).record(settings.dictionary.intern(command), time, settings, null);
+    }
+
+    @Override
+    public PlayerUsage load(UUID uuid) {
+        UsageSnapshot.Index index = snapshotIndex;
+        return index == null ? null : index.load(uuid);
+    }
+
+    @Override
+    public long append(UUID uuid, String command, long time) {
+        journal.append(uuid, command, time);
+        return journal.activeId();
+    }
+
+    @Override
+    public long persisted() {
+        return foldedSegment;
+    }
+
+    /**
+     * Group-commits queued journal records and compacts once the active segment grows too large.
+     */
+    @Override
+    public void commit(PlayerUsage.Settings settings) throws IOException {
+        journal.flush();
+        if (journal.activeBytes() >= compactBytes) {
+            compact(settings);
+        }
+    }
+
+    /**
+     * Folds all sealed journal segments into the usage snapshot. Only players that appear in those
+     * segments are rebuilt, from the previous snapshot plus their journaled increments; every other
+     * player is copied over unchanged. Live records are never read, so increments still waiting in
+     * the journal queue cannot be counted twice.
+     */
+    @Override
+    public void compact(PlayerUsage.Settings settings) throws IOException {
+        journal.flush();
+        if (journal.activeBytes() == 0 && !journal.hasSealedSegments(foldedSegment)) {
+            return;
+        }
+        long start = System.nanoTime();
+        long sealed = journal.seal();
+        int backups = this.backups;
+        UsageSnapshot.Index base = snapshotIndex;
+        Map<UUID, PlayerUsage> changed = new HashMap<>();
+        journal.replaySealed(foldedSegment, sealed, (uuid, command, time) -> replay(changed, base, uuid, command, time, settings));
+        UsageSnapshot.write(usagePath, base, changed, sealed, dictionary, backups);
+        snapshotIndex = UsageSnapshot.open(usagePath, dictionary);
+        retiredIndex = base;
+        foldedSegment = sealed;
+        journal.deleteUpTo(UsageSnapshot.oldestFoldedSegment(usagePath, backups, sealed));
+        compactTime.recordSince(start);
+        snapshotSize.record(Files.size(usagePath));
+    }
+
+    @Override
+    public void markCommands(BitSet live) {
+        UsageSnapshot.Index index = snapshotIndex;
+        if (index != null) {
+            index.markCommands(live);
+        }
+        if (retiredIndex != null) {
+            retiredIndex.markCommands(live);
+            retiredIndex = null;
+        }
+    }
+
+    @Override
+    public boolean shared() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
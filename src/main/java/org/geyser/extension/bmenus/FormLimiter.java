@@ -0,0 +1,119 @@
+package org.geyser.extension.bmenus;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Per-connection throttling of the menu trigger.
+ * <p>
+ * Each player has one small state object holding the time of the last accepted trigger, updated with
+ * compare-and-set, and the forms sent to them that have not been answered yet, each with its send time,
+ * in a lock-free queue. Triggers and form responses arriving on different threads therefore never lock.
+ * A trigger is dropped while it falls inside the debounce window of the previous one, or while the player
+ * already has the maximum number of forms open. States are created on the first trigger and removed on
+ * disconnect.
+ */
+final class FormLimiter {
+
+    enum Decision {
+        ACCEPTED,
+        DEBOUNCED,
+        TOO_MANY_FORMS
+    }
+
+    private final Map<UUID, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * Decides whether a trigger at {@code now} may open a menu and records it if so.
+     *
+     * @param formTimeoutMillis forms left unanswered for this long since they were sent no longer count
+     *                          as open, in case a client never answers them
+     */
+    Decision tryTrigger(UUID uuid, long now, long debounceMillis, int maxOpenForms, long formTimeoutMillis) {
+        State state = states.computeIfAbsent(uuid, id -> new State());
+        long last = state.lastTrigger;
+        if (now - last < debounceMillis) {
+            return Decision.DEBOUNCED;
+        }
+        if (state.openForms(now, formTimeoutMillis) >= maxOpenForms) {
+            return Decision.TOO_MANY_FORMS;
+        }
+        // a concurrent trigger for the same player won the race; treat this one as a repeat
+        return State.LAST_TRIGGER.compareAndSet(state, last, now) ? Decision.ACCEPTED : Decision.DEBOUNCED;
+    }
+
+    /**
+     * Tracks a form sent to the player at {@code now}. Players without a state never triggered a menu
+     * and are not limited.
+     *
+     * @return the form to pass to {@link #answered}, or {@code null} if the player is not limited
+     */
+    OpenForm opened(UUID uuid, long now) {
+        State state = states.get(uuid);
+        if (state == null) {
+            return null;
+        }
+        OpenForm form = new OpenForm(state, now);
+        state.forms.add(form);
+        return form;
+    }
+
+    /**
+     * Stops tracking a form once it was submitted or closed. A late response to a form that already
+     * timed out changes nothing.
+     */
+    void answered(OpenForm form) {
+        if (form != null) {
+            form.state.forms.remove(form);
+        }
+    }
+
+    void remove(UUID uuid) {
+        states.remove(uuid);
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    /**
+     * A form sent to a limited player and not answered yet.
+     */
+    static final class OpenForm {
+        private final State state;
+        private final long sentAt;
+
+        private OpenForm(State state, long sentAt) {
+            this.state = state;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static final class State {
+        static final AtomicLongFieldUpdater<State> LAST_TRIGGER =
+                AtomicLongFieldUpdater.newUpdater(State.class, "lastTrigger");
+
+        final Queue<OpenForm> forms = new ConcurrentLinkedQueue<>();
+        volatile long lastTrigger = Long.MIN_VALUE / 2;
+
+        /**
+         * Counts the forms sent less than {@code timeoutMillis} ago and forgets the older ones.
+         */
+        int openForms(long now, long timeoutMillis) {
+            int open = 0;
+            for (Iterator<OpenForm> it = forms.iterator(); it.hasNext(); ) {
+                if (now - it.next().sentAt >= timeoutMillis) {
+                    it.remove();
+                } else {
+                    open++;
+                }
+            }
+            return open;
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package org.geyser.extension.bmenus;
 
+import org.geysermc.cumulus.component.ButtonComponent;
 import org.geysermc.cumulus.form.CustomForm;
 import org.geysermc.cumulus.form.SimpleForm;
+import org.geysermc.cumulus.response.CustomFormResponse;
+import org.geysermc.cumulus.response.SimpleFormResponse;
 import org.geysermc.geyser.api.GeyserApi;
 import org.geysermc.geyser.api.connection.GeyserConnection;
 import org.geysermc.geyser.api.extension.Extension;
 import org.geysermc.geyser.api.network.RemoteServer;
 import org.yaml.snakeyaml.Yaml;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.io.Writer;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,110 +35,497 @@ import java.util.regex.Pattern;
  */
 public class MenuManager {
 
+    private static final String SEARCH_PLACEHOLDER = "Part of a name";
+    private static final String PREVIOUS_PAGE = "\u00ab Previous page";
+    private static final String NEXT_PAGE = "Next page \u00bb";
+
+    private static final long RELOAD_DELAY_MILLIS = 500;
+    private static final int SWEEP_BATCH = 256;
+
     private final Extension extension;
-    private final Map<String, Menu> menus = new HashMap<>();
-    private final Map<UUID, LinkedHashMap<String, Integer>> usage = new HashMap<>();
-    private final Map<UUID, Map<String, Long>> usageTimes = new HashMap<>();
-    private final Path usagePath;
-    private List<String> defaultCommands = new ArrayList<>();
+    private final Map<UUID, PlayerUsage> usage = new ConcurrentHashMap<>();
+    private final CommandDictionary dictionary = new CommandDictionary();
+    private final Path configPath;
+    private final Path menusPath;
+    private volatile UsageStore store;
+    private volatile Config config;
+    private Map<String, Object> rootConfig;
+    private Map<Path, Map<String, Object>> menuFiles = Collections.emptyMap();
+    private WatchService watchService;
+    private ScheduledFuture<?> pendingReload;
+    private final Set<Path> changedFiles = new HashSet<>();
+    private boolean reloadAll;
 
     private enum QueryState {
         UNKNOWN,
         ENABLED,
-        UNAVAILABLE,
-        DISABLED
+        UNAVAILABLE
     }
 
     private final Object playerListLock = new Object();
-    private volatile List<String> playerListCache = Collections.emptyList();
-    private volatile long playerListCacheTime = 0L;
-    private long playerCacheDurationMillis = TimeUnit.SECONDS.toMillis(3);
-    private QueryState queryState = QueryState.UNKNOWN;
-    private boolean queryExplicitlyDisabled = false;
-    private int queryPortOverride = -1;
-    private int queryTimeoutMillis = 1500;
-    private long queryRetryDelayMillis = TimeUnit.SECONDS.toMillis(30);
-    private long nextQueryAttemptMillis = 0L;
-    private boolean queryFailureLogged = false;
+    private final PlayerNameIndex playerNames = new PlayerNameIndex();
+    private final FormLimiter formLimiter = new FormLimiter();
+    private final PlayerLanes lanes;
+    private final CommandDispatcher dispatcher;
+    private ScheduledFuture<?> refreshTask;
+    private final QueryClient queryClient = new QueryClient();
+    private List<QueryTarget> queryTargets = Collections.emptyList();
+    // whether any backend is queried at all; without one the list is never stale
+    private volatile boolean remoteRefresh;
+    private volatile long remotePlayerNamesTime = 0L;
+    private long queryGeneration = 0L;
 
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /** Sends the delayed commands of macros, so a slow save or compaction never holds them up. */
+    private final ScheduledExecutorService commandScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BMenus-Commands");
+        thread.setDaemon(true);
+        return thread;
+    });
     private ScheduledFuture<?> saveTask;
-    private long saveIntervalSeconds = 300;
-    private int maxCommands = 50;
-    private long usageExpiryMillis = TimeUnit.DAYS.toMillis(7);
+    private ScheduledFuture<?> commitTask;
+    private ScheduledFuture<?> evictTask;
+    private ScheduledFuture<?> sweepTask;
+    private final ExpiryQueue expiryQueue = new ExpiryQueue();
+    private ScheduledFuture<?> metricsTask;
+
+    private final Metrics metrics = new Metrics();
+    private final LongAdder formsSent = metrics.counter("forms.sent");
+    private final LongAdder formsSubmitted = metrics.counter("forms.submitted");
+    private final LongAdder formsClosed = metrics.counter("forms.closed");
+    private final LongAdder commandsDispatched = metrics.counter("commands.dispatched");
+    private final LongAdder triggersAccepted = metrics.counter("triggers.accepted");
+    private final LongAdder triggersDebounced = metrics.counter("triggers.dropped.debounce");
+    private final LongAdder triggersBlocked = metrics.counter("triggers.dropped.open-forms");
+    private final LongAdder playerListFresh = metrics.counter("players.list.fresh");
+    private final LongAdder playerListStale = metrics.counter("players.list.stale");
+    private final Metrics.Histogram queryTime = metrics.histogram("query.time.us");
+    private final LongAdder queryFailures = metrics.counter("query.failures");
+    private final LongAdder queryUnavailable = metrics.counter("query.unavailable");
+    private final LongAdder usageLoaded = metrics.counter("usage.players.loaded");
+    private final LongAdder usageSwept = metrics.counter("usage.sweep.records");
+    private final LongAdder usageLoadFailures = metrics.counter("usage.players.load-failures");
+    private final Metrics.Histogram usageCommitTime = metrics.histogram("usage.commit.us");
+    private final Metrics.Histogram usageLoadTime = metrics.histogram("usage.load.us");
+    private final Metrics.Histogram usageOpenTime = metrics.histogram("usage.open.us");
 
     public MenuManager(Extension extension) {
         this.extension = extension;
-        this.usagePath = extension.dataFolder().resolve("usage.yml");
+        this.config = Config.defaults(extension, dictionary, metrics);
+        this.configPath = extension.dataFolder().resolve("menus.yml");
+        this.menusPath = extension.dataFolder().resolve("menus");
+        this.lanes = new PlayerLanes((thread, error) -> extension.logger().error("Unable to handle a form response", error));
+        this.dispatcher = new CommandDispatcher(commandScheduler, this::sendCommand);
+
+        metrics.gauge("usage.players.resident", usage::size);
+        metrics.gauge("usage.commands.known", dictionary::count);
+        metrics.gauge("usage.sweep.queued", expiryQueue::size);
+        metrics.gauge("players.online", playerNames::localCount);
+        metrics.gauge("players.listed", () -> playerNames.names().list().size());
+        metrics.gauge("triggers.tracked", formLimiter::size);
+        metrics.gauge("lanes.players", lanes::size);
     }
 
     /**
-     * Loads the menus.yml file from the extension data folder.
+     * Loads menus.yml and the files in the menus/ directory from the extension data folder, then the
+     * usage data, and starts watching both for changes.
      */
     public void loadConfig() {
-        Path configPath = extension.dataFolder().resolve("menus.yml");
         if (Files.notExists(configPath)) {
             saveDefault(configPath);
         }
+        try {
+            Files.createDirectories(menusPath);
+        } catch (IOException e) {
+            extension.logger().error("Unable to create the menus directory", e);
+        }
+
+        Config loaded;
+        try {
+            Map<String, Object> root = readRootConfig();
+            Map<Path, Map<String, Object>> files = readMenuFiles();
+            loaded = Config.parse(root, files, extension, dictionary, metrics);
+            rootConfig = root;
+            menuFiles = files;
+        } catch (IOException | RuntimeException e) {
+            extension.logger().error("Unable to load menus", e);
+            loaded = Config.defaults(extension, dictionary, metrics);
+        }
+        // players already online (for example after a reload) never sent a login event to us
+        playerNames.reset(extension.geyserApi().onlineConnections());
+        store = createStore(loaded.usage);
+        publish(loaded, true);
+
+        loadUsage();
+        startSaver(loaded.usage);
+        startWatcher();
+    }
+
+    /**
+     * Re-reads menus.yml and every menu file on the saver thread and publishes the result if it parses
+     * and validates. On failure the current configuration stays active.
+     *
+     * @param feedback receives a one-line result, for example the sender of the reload command
+     */
+    void reload(Consumer<String> feedback) {
+        try {
+            executor.execute(() -> reloadNow(null, feedback));
+        } catch (RejectedExecutionException e) {
+            feedback.accept("BMenus is shutting down");
+        }
+    }
+
+    /**
+     * Re-parses only the given files, reusing the parsed content of every other file, or everything if
+     * {@code changed} is {@code null}. Runs on the saver thread, which owns {@code rootConfig} and
+     * {@code menuFiles} after startup.
+     */
+    private void reloadNow(Set<Path> changed, Consumer<String> feedback) {
+        if (rootConfig == null) {
+            // the last full load failed, so there is nothing to reuse
+            changed = null;
+        }
+        try {
+            Map<String, Object> root;
+            Map<Path, Map<String, Object>> files;
+            if (changed == null) {
+                root = readRootConfig();
+                files = readMenuFiles();
+            } else {
+                root = rootConfig;
+                files = new TreeMap<>(menuFiles);
+                for (Path file : changed) {
+                    if (file.equals(configPath)) {
+                        root = readRootConfig();
+                    } else if (Files.exists(file)) {
+                        files.put(file, readMenuFile(file));
+                    } else {
+                        files.remove(file);
+                    }
+                }
+            }
+            Config next = Config.parse(root, files, extension, dictionary, metrics);
+            rootConfig = root;
+            menuFiles = files;
+            publish(next, false);
+
+            String message = "Reloaded " + describe(changed) + " (" + next.menus.size() + " menus)";
+            extension.logger().info(message);
+            feedback.accept(message);
+        } catch (IOException | RuntimeException e) {
+            if (changed != null) {
+                // the files still differ from what is loaded; pick them up again with the next change
+                synchronized (this) {
+                    changedFiles.addAll(changed);
+                }
+            }
+            extension.logger().error("Unable to reload " + describe(changed) + ", keeping the previous configuration", e);
+            feedback.accept("Reload failed, keeping the previous configuration: " + e.getMessage());
+        }
+    }
+
+    private String describe(Set<Path> changed) {
+        if (changed == null) {
+            return "menus.yml and " + menusPath.getFileName() + "/";
+        }
+        StringJoiner joiner = new StringJoiner(", ");
+        for (Path file : changed) {
+            joiner.add(file.equals(configPath) ? file.getFileName().toString() : menuFileName(file));
+        }
+        return joiner.toString();
+    }
+
+    private String menuFileName(Path file) {
+        return menusPath.getFileName() + "/" + file.getFileName();
+    }
 
+    private Map<String, Object> readRootConfig() throws IOException {
         try (Reader reader = Files.newBufferedReader(configPath)) {
-            Yaml yaml = new Yaml();
-            Map<String, Object> root = yaml.load(reader);
-            if (root == null) {
-                return;
+            return new Yaml().load(reader);
+        }
+    }
+
+    /**
+     * Parses every file in the menus/ directory. The files are independent and YAML parsing dominates
+     * load time, so each file gets its own parser on a fork-join worker.
+     */
+    private Map<Path, Map<String, Object>> readMenuFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(menusPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(menusPath, MenuManager::isMenuFile)) {
+                stream.forEach(files::add);
+            }
+        }
+        Map<Path, Map<String, Object>> parsed = new TreeMap<>();
+        if (files.isEmpty()) {
+            return parsed;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<ForkJoinTask<Map<String, Object>>> tasks = new ArrayList<>(files.size());
+            for (Path file : files) {
+                tasks.add(pool.submit(() -> readMenuFile(file)));
             }
-            Map<String, Object> menusMap = (Map<String, Object>) root.get("menus");
-            for (Map.Entry<String, Object> entry : menusMap.entrySet()) {
-                menus.put(entry.getKey(), Menu.fromMap((Map<String, Object>) entry.getValue()));
+            for (int i = 0; i < files.size(); i++) {
+                parsed.put(files.get(i), tasks.get(i).join());
             }
+        } finally {
+            pool.shutdown();
+        }
+        return parsed;
+    }
 
-            Menu mainMenu = menus.get("main");
-            if (mainMenu != null) {
-                for (int i = 0; i < mainMenu.buttons.size(); i++) {
-                    MenuButton button = mainMenu.buttons.get(i);
-                    if ("common".equalsIgnoreCase(button.menu)) {
-                        if (i != 0) {
-                            mainMenu.buttons.remove(i);
-                            mainMenu.buttons.add(0, button);
-                        }
-                        break;
-                    }
-                }
+    /**
+     * Returns the {@code menus} section of one file in the menus/ directory.
+     *
+     * @throws IllegalArgumentException if the file cannot be read or parsed
+     */
+    private Map<String, Object> readMenuFile(Path file) {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            Map<String, Object> root = new Yaml().load(reader);
+            Object menus = root == null ? null : root.get("menus");
+            if (menus == null) {
+                return Collections.emptyMap();
+            }
+            if (!(menus instanceof Map<?, ?>)) {
+                throw new IllegalArgumentException("menus is not a section");
+            }
+            return (Map<String, Object>) menus;
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Unable to read " + menuFileName(file) + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isMenuFile(Path file) {
+        String name = file.getFileName().toString();
+        return (name.endsWith(".yml") || name.endsWith(".yaml")) && !name.startsWith(".");
+    }
+
+    /**
+     * Makes a parsed configuration current with a single volatile write. Only the tasks and player
+     * sources whose settings changed are restarted.
+     */
+    private synchronized void publish(Config next, boolean startup) {
+        Config previous = config;
+        config = next;
+        dictionary.clearLabels();
+        if (store instanceof FileUsageStore file) {
+            file.configure(next.usage.fsync(), next.usage.fsyncIntervalMillis(), next.usage.compactBytes(),
+                    next.usage.backups());
+        }
+        if (!startup && (next.usage.store() != previous.usage.store() || !next.usage.sql().equals(previous.usage.sql()))) {
+            extension.logger().warning("Changes to usage.store and usage.sql take effect after a restart");
+        }
 
+        // at startup the saver is started by loadConfig once the store has been opened
+        if (!startup && (next.usage.saveIntervalSeconds() != previous.usage.saveIntervalSeconds()
+                || next.usage.commitIntervalMillis() != previous.usage.commitIntervalMillis())) {
+            startSaver(next.usage);
+        }
+        if (!startup && (next.usage.expiryMillis() != previous.usage.expiryMillis()
+                || next.usage.ranking() != previous.usage.ranking())) {
+            // resident records were queued for the old expiry; check them all again
+            for (PlayerUsage record : usage.values()) {
+                expiryQueue.schedule(record, 0L);
+            }
+        }
+        if (startup || !next.players.equals(previous.players)) {
+            configurePlayerSources(next.players);
+            startPlayerRefresher(next.players);
+        }
+        if (startup || !next.metrics.equals(previous.metrics)) {
+            startMetrics(next.metrics);
+        }
+        if (startup || !next.execution.equals(previous.execution)) {
+            PlayerLanes.Mode mode = lanes.configure(next.execution.mode(), next.execution.poolSize());
+            if (mode != next.execution.mode()) {
+                extension.logger().info("Virtual threads need Java 21, handling forms on "
+                        + next.execution.poolSize() + " worker threads instead");
             }
+        }
+    }
 
-            Map<String, Object> defaults = (Map<String, Object>) root.get("defaults");
-            if (defaults != null) {
-                List<String> common = (List<String>) defaults.get("common");
-                if (common != null) {
-                    defaultCommands = new ArrayList<>(common);
-                }
+    /**
+     * Registers or unregisters the JMX bean and reschedules the metrics file writer.
+     */
+    private void startMetrics(MetricsSettings settings) {
+        if (settings.jmx()) {
+            try {
+                metrics.registerMBean();
+            } catch (JMException e) {
+                extension.logger().error("Unable to register the metrics MBean", e);
             }
+        } else {
+            metrics.unregisterMBean();
+        }
+        if (metricsTask != null) {
+            metricsTask.cancel(false);
+            metricsTask = null;
+        }
+        long interval = settings.fileIntervalSeconds();
+        if (interval > 0) {
+            metricsTask = executor.scheduleWithFixedDelay(this::writeMetrics, interval, interval, TimeUnit.SECONDS);
+        }
+    }
 
-            Map<String, Object> usageCfg = (Map<String, Object>) root.get("usage");
-            if (usageCfg != null) {
-                Number flush = (Number) usageCfg.get("flush-interval-seconds");
-                if (flush != null) {
-                    saveIntervalSeconds = flush.longValue();
+    private void writeMetrics() {
+        try {
+            metrics.writeTo(extension.dataFolder().resolve(config.metrics.fileName()));
+        } catch (IOException e) {
+            extension.logger().error("Unable to write metrics", e);
+        }
+    }
+
+    /**
+     * Summarizes the metrics in a few lines for the stats command.
+     */
+    List<String> stats() {
+        SortedMap<String, Long> values = metrics.snapshot();
+        long fresh = values.get("players.list.fresh");
+        long stale = values.get("players.list.stale");
+        long lookups = fresh + stale;
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Forms: " + values.get("forms.sent") + " sent, " + values.get("forms.submitted") + " submitted, "
+                + values.get("forms.closed") + " closed; " + values.get("commands.dispatched") + " commands run");
+        lines.add("Triggers: " + values.get("triggers.accepted") + " accepted, "
+                + values.get("triggers.dropped.debounce") + " debounced, "
+                + values.get("triggers.dropped.open-forms") + " dropped with forms open");
+        StringBuilder opened = new StringBuilder("Menus opened:");
+        values.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith("menus.opened."))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(5)
+                .forEach(entry -> opened.append(' ').append(entry.getKey().substring("menus.opened.".length()))
+                        .append('=').append(entry.getValue()));
+        lines.add(opened.toString());
+        lines.add("Player list: " + values.get("players.online") + " online, " + values.get("players.listed")
+                + " listed, " + (lookups == 0 ? 100 : fresh * 100 / lookups) + "% served fresh");
+        lines.add("Queries: " + values.get("query.time.us.count") + " answered, p50 "
+                + values.get("query.time.us.p50") / 1000 + " ms, p99 " + values.get("query.time.us.p99") / 1000
+                + " ms, " + values.get("query.failures") + " failed");
+        lines.add("Usage: " + values.get("usage.players.resident") + " players resident, "
+                + values.get("usage.commands.known") + " commands known, load p99 "
+                + values.get("usage.load.us.p99") / 1000 + " ms, compaction p99 "
+                + values.get("usage.compact.us.p99") / 1000 + " ms");
+        return lines;
+    }
+
+    private void startWatcher() {
+        if (watchService != null) {
+            return;
+        }
+        try {
+            WatchService service = configPath.getFileSystem().newWatchService();
+            configPath.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchMenus(service);
+            Thread thread = new Thread(() -> watch(service), "BMenus-ConfigWatcher");
+            thread.setDaemon(true);
+            thread.start();
+            watchService = service;
+        } catch (IOException e) {
+            extension.logger().warning("Unable to watch menus for changes, use the reload command instead: " + e.getMessage());
+        }
+    }
+
+    private void watchMenus(WatchService service) throws IOException {
+        if (Files.isDirectory(menusPath)) {
+            menusPath.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    /**
+     * Runs until the watch service is closed. A directory that can no longer be watched, for example
+     * because it was deleted, only loses its own key; the menus directory is watched again as soon as it
+     * is created again.
+     */
+    private void watch(WatchService service) {
+        Path dataFolder = configPath.getParent();
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path folder = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    scheduleReload(null);
+                    continue;
                 }
-                Number max = (Number) usageCfg.get("max-commands");
-                if (max != null) {
-                    maxCommands = max.intValue();
+                Path file = folder.resolve((Path) event.context());
+                if (folder.equals(dataFolder) && file.equals(menusPath)) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        try {
+                            watchMenus(service);
+                        } catch (ClosedWatchServiceException e) {
+                            return;
+                        } catch (IOException e) {
+                            extension.logger().warning("Unable to watch the menus directory, use the reload command instead: " + e.getMessage());
+                        }
+                        // files may have been added before the directory was registered
+                        scheduleReload(null);
+                    }
+                } else if (file.equals(configPath) || (folder.equals(menusPath) && isMenuFile(file))) {
+                    scheduleReload(file);
                 }
-                Number expiry = (Number) usageCfg.get("expiry-seconds");
-                if (expiry != null) {
-                    usageExpiryMillis = expiry.longValue() * 1000L;
+            }
+            if (!key.reset()) {
+                key.cancel();
+                if (folder.equals(menusPath)) {
+                    // the directory is gone, and with it every menu defined there
+                    scheduleReload(null);
+                } else {
+                    extension.logger().warning("Stopped watching " + folder + " for changes, use the reload command instead");
                 }
             }
+        }
+    }
 
-            Map<String, Object> playersCfg = (Map<String, Object>) root.get("players");
-            configurePlayerSources(playersCfg);
-        } catch (IOException e) {
-            extension.logger().error("Unable to load menus.yml", e);
+    /**
+     * Collects changed files until they have been quiet briefly, since editors often save in several
+     * writes, then reloads just those files.
+     *
+     * @param file the changed file, or {@code null} to reload everything
+     */
+    private synchronized void scheduleReload(Path file) {
+        if (file == null) {
+            reloadAll = true;
+        } else {
+            changedFiles.add(file);
+        }
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        try {
+            pendingReload = executor.schedule(this::reloadChanged, RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
         }
+    }
 
-        loadUsage();
-        startSaver();
+    private void reloadChanged() {
+        Set<Path> changed;
+        synchronized (this) {
+            changed = reloadAll ? null : new TreeSet<>(changedFiles);
+            changedFiles.clear();
+            reloadAll = false;
+            pendingReload = null;
+        }
+        reloadNow(changed, message -> { });
+    }
+
+    /**
+     * Returns the compiled template for a command. Commands that were not part of the configuration
+     * (for example previously built commands shown in the Common menu) are parsed without being cached.
+     */
+    private CommandTemplate template(String command) {
+        CommandTemplate template = config.templates.get(command);
+        return template != null ? template : CommandTemplate.parse(command, extension);
     }
 
     private void saveDefault(Path path) {
@@ -148,171 +541,234 @@ public class MenuManager {
         }
     }
 
-    private void configurePlayerSources(Map<String, Object> config) {
-        playerListCache = Collections.emptyList();
-        playerListCacheTime = 0L;
-        nextQueryAttemptMillis = 0L;
-        queryFailureLogged = false;
-
-        playerCacheDurationMillis = TimeUnit.SECONDS.toMillis(3);
-        queryTimeoutMillis = 1500;
-        queryRetryDelayMillis = TimeUnit.SECONDS.toMillis(30);
-        queryPortOverride = -1;
-        queryExplicitlyDisabled = false;
-        queryState = QueryState.UNKNOWN;
-
-        if (config == null) {
-            return;
+    /**
+     * Rebuilds the query targets for new player settings. Results of queries started for the previous
+     * targets are discarded.
+     */
+    private void configurePlayerSources(PlayerSettings players) {
+        synchronized (playerListLock) {
+            queryTargets = createQueryTargets(players);
+            remoteRefresh = players.queryEnabled() && !queryTargets.isEmpty();
+            playerNames.remote(Collections.emptyList());
+            remotePlayerNamesTime = 0L;
+            queryGeneration++;
         }
+    }
 
-        Object cacheObj = config.get("cache-seconds");
-        if (cacheObj instanceof Number number) {
-            long seconds = number.longValue();
-            if (seconds < 0) {
-                seconds = 0;
+    /**
+     * Builds the backends to query: {@code query.targets} if configured, otherwise Geyser's remote server.
+     */
+    private List<QueryTarget> createQueryTargets(PlayerSettings players) {
+        List<QueryTarget> targets = new ArrayList<>();
+        if (players.queryTargets().isEmpty()) {
+            RemoteServer remote = extension.geyserApi().defaultRemoteServer();
+            if (remote != null) {
+                int port = players.queryPortOverride() > 0 ? players.queryPortOverride() : remote.port();
+                targets.add(new QueryTarget(remote.address(), port));
             }
-            playerCacheDurationMillis = TimeUnit.SECONDS.toMillis(seconds);
+            return targets;
         }
 
-        Object queryObj = config.get("query");
-        if (queryObj instanceof Map<?, ?> rawMap) {
-            Map<?, ?> queryMap = rawMap;
-
-            Object enabledObj = queryMap.get("enabled");
-            if (enabledObj instanceof Boolean bool) {
-                queryExplicitlyDisabled = !bool;
-                queryState = bool ? QueryState.UNKNOWN : QueryState.DISABLED;
+        for (String target : players.queryTargets()) {
+            String host = target;
+            int port = 25565;
+            int colon = target.lastIndexOf(':');
+            // a bare IPv6 address has several colons; require brackets to give it a port
+            if (colon > 0 && (target.indexOf(':') == colon || target.startsWith("["))) {
+                host = target.substring(0, colon);
+                try {
+                    port = Integer.parseInt(target.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    extension.logger().warning("Ignoring query target with invalid port: " + target);
+                    continue;
+                }
             }
-
-            Object portObj = queryMap.get("port");
-            if (portObj instanceof Number number) {
-                int port = number.intValue();
-                queryPortOverride = port > 0 ? port : -1;
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
             }
-
-            Object timeoutObj = queryMap.get("timeout-ms");
-            if (timeoutObj instanceof Number number) {
-                int timeout = number.intValue();
-                if (timeout > 0) {
-                    queryTimeoutMillis = timeout;
-                }
+            if (host.isEmpty() || port <= 0 || port > 65535) {
+                extension.logger().warning("Ignoring invalid query target: " + target);
+                continue;
             }
+            targets.add(new QueryTarget(host, port));
+        }
+        return targets;
+    }
 
-            Object retryObj = queryMap.get("retry-seconds");
-            if (retryObj instanceof Number number) {
-                long seconds = number.longValue();
-                if (seconds < 0) {
-                    seconds = 0;
-                }
-                queryRetryDelayMillis = TimeUnit.SECONDS.toMillis(seconds);
+    /**
+     * Opens the main menu for the emote trigger, unless the player triggered it within
+     * {@code trigger.debounce-ms} or still has {@code trigger.max-open-forms} forms open. Dropped triggers
+     * are counted by reason.
+     */
+    void triggerMainMenu(GeyserConnection connection) {
+        TriggerSettings trigger = config.trigger;
+        switch (formLimiter.tryTrigger(connection.playerUuid(), System.currentTimeMillis(), trigger.debounceMillis(),
+                trigger.maxOpenForms(), trigger.formTimeoutMillis())) {
+            case ACCEPTED -> {
+                triggersAccepted.increment();
+                lanes.execute(connection.playerUuid(), () -> openMenu(connection, "main"));
             }
+            case DEBOUNCED -> triggersDebounced.increment();
+            case TOO_MANY_FORMS -> triggersBlocked.increment();
         }
     }
 
-
     /**
      * Opens a menu with the given id for the player.
      */
     public void openMenu(GeyserConnection connection, String id) {
-        Menu menu = menus.get(id);
+        MenuNode menu = config.menus.get(id);
         if (menu == null) {
             extension.logger().warning("Menu " + id + " not found");
             return;
         }
-        if ("common".equalsIgnoreCase(id)) {
-            openCommon(connection, menu);
-            return;
-        }
-        if ("simple".equalsIgnoreCase(menu.type)) {
-            openSimple(connection, menu);
-        } else if ("custom".equalsIgnoreCase(menu.type)) {
-            openCustom(connection, menu);
-        }
+        openNode(connection, menu);
     }
 
-    private void openSimple(GeyserConnection connection, Menu menu) {
-        SimpleForm.Builder builder = SimpleForm.builder()
-                .title(menu.title);
-        if (menu.content != null) {
-            builder.content(menu.content);
+    private void openNode(GeyserConnection connection, MenuNode menu) {
+        menu.opened.increment();
+        switch (menu.type) {
+            case SIMPLE -> openSimple(connection, menu.form);
+            case CUSTOM -> menu.action.run(this, connection);
+            case COMMON -> openCommon(connection, menu);
         }
-        for (MenuButton button : menu.buttons) {
-            builder.button(button.text);
-        }
-        builder.validResultHandler((form, response) -> {
-            int index = response.clickedButtonId();
-            if (index >= 0 && index < menu.buttons.size()) {
-                handleButton(connection, menu.buttons.get(index));
-            }
+    }
+
+    /**
+     * Sends a form, counts it and tracks it as open until the player answers or closes it. The form is
+     * no longer open when the handler runs, so a handler may send the next form. Handlers run on the
+     * player's lane, never on the thread that delivered the response.
+     */
+    private void send(GeyserConnection connection, SimpleForm.Builder builder, Consumer<SimpleFormResponse> handler) {
+        UUID uuid = connection.playerUuid();
+        FormLimiter.OpenForm open = formLimiter.opened(uuid, System.currentTimeMillis());
+        builder.validResultHandler(response -> {
+            formsSubmitted.increment();
+            formLimiter.answered(open);
+            lanes.execute(uuid, () -> handler.accept(response));
         });
+        builder.closedOrInvalidResultHandler(() -> closed(open));
+        formsSent.increment();
         connection.sendForm(builder.build());
     }
 
-    private void openCommon(GeyserConnection connection, Menu menu) {
-        LinkedHashMap<String, Integer> map = usage.computeIfAbsent(connection.playerUuid(), uuid -> {
-            LinkedHashMap<String, Integer> defaults = new LinkedHashMap<>();
-            for (String def : defaultCommands) {
-                defaults.put(def, 0);
-            }
-            return defaults;
+    private void send(GeyserConnection connection, CustomForm.Builder builder, Consumer<CustomFormResponse> handler) {
+        UUID uuid = connection.playerUuid();
+        FormLimiter.OpenForm open = formLimiter.opened(uuid, System.currentTimeMillis());
+        builder.validResultHandler(response -> {
+            formsSubmitted.increment();
+            formLimiter.answered(open);
+            lanes.execute(uuid, () -> handler.accept(response));
         });
-        Map<String, Long> times = usageTimes.computeIfAbsent(connection.playerUuid(), uuid -> {
-            Map<String, Long> defaults = new HashMap<>();
-            for (String def : defaultCommands) {
-                defaults.put(def, 0L);
+        builder.closedOrInvalidResultHandler(() -> closed(open));
+        formsSent.increment();
+        connection.sendForm(builder.build());
+    }
+
+    private void closed(FormLimiter.OpenForm open) {
+        formsClosed.increment();
+        formLimiter.answered(open);
+    }
+
+    private void openSimple(GeyserConnection connection, SimpleFormModel model) {
+        MenuAction[] actions = model.actions;
+        SimpleForm.Builder builder = model.builder();
+        send(connection, builder, response -> {
+            int index = response.clickedButtonId();
+            if (index >= 0 && index < actions.length) {
+                actions[index].run(this, connection);
             }
-            return defaults;
         });
+    }
 
-        cleanupUsage(connection.playerUuid(), map, times);
-
-        List<Map.Entry<String, Integer>> entries = new ArrayList<>(map.entrySet());
-        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+    private void openCommon(GeyserConnection connection, MenuNode menu) {
+        PlayerUsage.Settings settings = config.usageSettings;
+        int[] ids = playerUsage(connection.playerUuid(), settings)
+                .top(10, System.currentTimeMillis(), settings);
 
+        // the form may stay open across a dictionary reclaim, so it keeps the commands rather than ids
         SimpleForm.Builder builder = SimpleForm.builder().title(menu.title);
-        List<String> commands = new ArrayList<>();
-        int limit = Math.min(10, entries.size());
-        for (int i = 0; i < limit; i++) {
-            String cmd = entries.get(i).getKey();
-            builder.button(toLabel(cmd));
-            commands.add(cmd);
+        String[] labels = new String[ids.length];
+        String[] commands = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            labels[i] = dictionary.label(ids[i], this::toLabel);
+            commands[i] = dictionary.command(ids[i]);
+            builder.button(labels[i]);
         }
 
-        builder.validResultHandler((form, response) -> {
+        send(connection, builder, response -> {
             int index = response.clickedButtonId();
-            if (index >= 0 && index < commands.size()) {
-                runCommandTemplate(connection, toLabel(commands.get(index)), commands.get(index));
+            if (index >= 0 && index < commands.length) {
+                runCommandTemplate(connection, labels[index], commands[index]);
             }
         });
+    }
 
-        connection.sendForm(builder.build());
+    private void runCommandTemplate(GeyserConnection connection, String title, String command) {
+        if (Macro.isKey(command)) {
+            runMacro(connection, macro(command, title));
+        } else {
+            runCommand(connection, title, template(command));
+        }
     }
 
-    private void handleButton(GeyserConnection connection, MenuButton button) {
-        if (button.menu != null) {
-            openMenu(connection, button.menu);
-        } else if (button.command != null) {
-            runCommandTemplate(connection, button.text, button.command);
+    private void runCommand(GeyserConnection connection, String title, CommandTemplate template) {
+        if (template.arguments.length == 0) {
+            recordCommandUsage(connection, template.raw);
+            execute(connection, template.raw);
+        } else {
+            openCommandForm(connection, title, template, command -> dispatchCommand(connection, command));
         }
     }
 
-    private void openCustom(GeyserConnection connection, Menu menu) {
-        if (menu.command != null) {
-            runCommandTemplate(connection, menu.title, menu.command);
+    /**
+     * Builds every command of the macro, asking for the arguments of each in turn, then records the
+     * macro as one usage entry and queues its commands.
+     */
+    private void runMacro(GeyserConnection connection, Macro macro) {
+        buildMacro(connection, macro, 0, new ArrayList<>(macro.steps.length));
+    }
+
+    private void buildMacro(GeyserConnection connection, Macro macro, int from, List<String> commands) {
+        for (int i = from; i < macro.steps.length; i++) {
+            CommandTemplate step = macro.steps[i];
+            if (step.arguments.length > 0) {
+                int next = i + 1;
+                openCommandForm(connection, macro.label, step, command -> {
+                    commands.add(command);
+                    buildMacro(connection, macro, next, commands);
+                });
+                return;
+            }
+            commands.add(step.raw);
         }
+        recordCommandUsage(connection, macro.key);
+        dispatcher.dispatch(connection, commands, macro.delayMillis);
     }
 
-    private void runCommandTemplate(GeyserConnection connection, String title, String command) {
-        CommandTemplate template = CommandTemplate.parse(command, extension);
-        if (template.arguments.isEmpty()) {
-            recordCommandUsage(connection, template.raw);
-            execute(connection, template.raw);
-        } else {
-            openCommandForm(connection, title, template);
+    /**
+     * Returns the configured macro with the given key. A macro that was removed from the configuration can
+     * still be listed in the Common menu; it runs its commands without delay.
+     */
+    private Macro macro(String key, String label) {
+        Macro macro = config.macros.get(key);
+        if (macro != null) {
+            return macro;
         }
+        String[] commands = Macro.commands(key);
+        CommandTemplate[] steps = new CommandTemplate[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            steps[i] = template(commands[i]);
+        }
+        return new Macro(key, label, steps, 0L);
     }
 
-    private void openCommandForm(GeyserConnection connection, String title, CommandTemplate template) {
+    /**
+     * Shows the argument form of a command and passes the built command to {@code then} once every
+     * argument, including player searches, has a value.
+     */
+    private void openCommandForm(GeyserConnection connection, String title, CommandTemplate template,
+                                 Consumer<String> then) {
         CustomForm.Builder builder = CustomForm.builder().title(title);
         List<List<String>> optionLists = new ArrayList<>();
 
@@ -327,10 +783,14 @@ public class MenuManager {
                     optionLists.add(arg.options);
                 }
                 case PLAYER_LIST -> {
-                    List<String> names = getOnlinePlayerNames();
+                    List<String> names = playerNameSnapshot().list();
                     builder.dropdown(arg.label, names);
                     optionLists.add(names);
                 }
+                case PLAYER_SEARCH -> {
+                    builder.input(arg.label, SEARCH_PLACEHOLDER);
+                    optionLists.add(null);
+                }
                 case TOGGLE -> {
                     builder.toggle(arg.label, false);
                     optionLists.add(null);
@@ -346,12 +806,12 @@ public class MenuManager {
             }
         }
 
-        builder.validResultHandler((form, response) -> {
+        send(connection, builder, response -> {
             List<String> values = new ArrayList<>();
             int index = 0;
             for (Argument arg : template.arguments) {
                 switch (arg.type) {
-                    case INPUT -> values.add(response.asInput(index));
+                    case INPUT, PLAYER_SEARCH -> values.add(response.asInput(index));
                     case DROPDOWN, PLAYER_LIST -> {
                         List<String> opts = optionLists.get(index);
                         values.add(opts.get(response.asDropdown(index)));
@@ -365,421 +825,1229 @@ public class MenuManager {
                 }
                 index++;
             }
-            String cmd = template.build(values);
-            recordCommandUsage(connection, cmd);
-            execute(connection, cmd);
+            resolvePlayerSearches(connection, title, template, values, 0, then);
         });
-
-        connection.sendForm(builder.build());
     }
 
-    private List<String> getOnlinePlayerNames() {
-        long now = System.currentTimeMillis();
-        if (now - playerListCacheTime < playerCacheDurationMillis) {
-            return new ArrayList<>(playerListCache);
+    /**
+     * Resolves {@code PLAYER_SEARCH} arguments from {@code from} on, one at a time. Text naming exactly
+     * one player is used as is; otherwise the player picks from a paged list of matches. Passes the
+     * built command to {@code then} once every argument is resolved.
+     */
+    private void resolvePlayerSearches(GeyserConnection connection, String title, CommandTemplate template,
+                                       List<String> values, int from, Consumer<String> then) {
+        for (int i = from; i < template.arguments.length; i++) {
+            if (template.arguments[i].type != ArgType.PLAYER_SEARCH) {
+                continue;
+            }
+            PlayerNameIndex.Snapshot snapshot = playerNameSnapshot();
+            String query = values.get(i);
+            String exact = snapshot.exact(query);
+            if (exact != null) {
+                values.set(i, exact);
+                continue;
+            }
+            List<String> matches = snapshot.match(query);
+            if (matches.isEmpty()) {
+                openSearchRetry(connection, title, template, values, i, then);
+            } else {
+                openSearchPage(connection, title, template, values, i, matches, 0, then);
+            }
+            return;
         }
+        then.accept(template.build(values));
+    }
 
-        synchronized (playerListLock) {
-            now = System.currentTimeMillis();
-            if (now - playerListCacheTime >= playerCacheDurationMillis) {
-                List<String> refreshed = refreshPlayerNames();
-                playerListCache = refreshed;
-                playerListCacheTime = now;
-            }
-            return new ArrayList<>(playerListCache);
+    /**
+     * Shows one page of search matches. The dropdown never holds more than {@code search.page-size}
+     * names plus the page links, however many players are online.
+     */
+    private void openSearchPage(GeyserConnection connection, String title, CommandTemplate template,
+                                List<String> values, int argument, List<String> matches, int page,
+                                Consumer<String> then) {
+        int pageSize = config.players.searchPageSize();
+        int pages = (matches.size() + pageSize - 1) / pageSize;
+        int start = page * pageSize;
+        List<String> pageNames = matches.subList(start, Math.min(start + pageSize, matches.size()));
+
+        List<String> options = new ArrayList<>(pageNames.size() + 2);
+        if (page > 0) {
+            options.add(PREVIOUS_PAGE);
+        }
+        options.addAll(pageNames);
+        if (page + 1 < pages) {
+            options.add(NEXT_PAGE);
         }
+        int first = page > 0 ? 1 : 0;
+
+        String label = template.arguments[argument].label;
+        CustomForm.Builder builder = CustomForm.builder()
+                .title(title)
+                .dropdown(pages > 1 ? label + " (" + (page + 1) + "/" + pages + ")" : label, options)
+                .input("Or search again", SEARCH_PLACEHOLDER);
+
+        send(connection, builder, response -> {
+            String again = response.asInput(1);
+            if (again != null && !again.isBlank()) {
+                values.set(argument, again);
+                resolvePlayerSearches(connection, title, template, values, argument, then);
+                return;
+            }
+            int choice = response.asDropdown(0) - first;
+            if (choice < 0) {
+                openSearchPage(connection, title, template, values, argument, matches, page - 1, then);
+            } else if (choice >= pageNames.size()) {
+                openSearchPage(connection, title, template, values, argument, matches, page + 1, then);
+            } else {
+                values.set(argument, pageNames.get(choice));
+                resolvePlayerSearches(connection, title, template, values, argument + 1, then);
+            }
+        });
     }
 
-    private List<String> refreshPlayerNames() {
-        LinkedHashSet<String> names = new LinkedHashSet<>();
-        for (GeyserConnection online : extension.geyserApi().onlineConnections()) {
-            names.add(online.name());
+    private void openSearchRetry(GeyserConnection connection, String title, CommandTemplate template,
+                                 List<String> values, int argument, Consumer<String> then) {
+        String query = values.get(argument);
+        CustomForm.Builder builder = CustomForm.builder()
+                .title(title)
+                .label("No players match \"" + query + "\".")
+                .input(template.arguments[argument].label, SEARCH_PLACEHOLDER, query);
+
+        send(connection, builder, response -> {
+            // index 0 is the label
+            String again = response.asInput(1);
+            values.set(argument, again == null ? "" : again);
+            resolvePlayerSearches(connection, title, template, values, argument, then);
+        });
+    }
+
+    private void dispatchCommand(GeyserConnection connection, String cmd) {
+        CommandTemplate known = config.templates.get(cmd);
+        if (known != null) {
+            cmd = known.raw;
         }
+        recordCommandUsage(connection, cmd);
+        execute(connection, cmd);
+    }
 
-        if (shouldAttemptQuery()) {
-            try {
-                List<String> javaPlayers = queryRemotePlayerNames();
-                names.addAll(javaPlayers);
-                queryState = QueryState.ENABLED;
-                queryFailureLogged = false;
-                nextQueryAttemptMillis = 0L;
-            } catch (IOException e) {
-                if (!queryFailureLogged) {
-                    extension.logger().warning("Unable to query remote server for player list: " + e.getMessage());
-                    queryFailureLogged = true;
-                } else if (extension.logger().isDebug()) {
-                    extension.logger().debug("Unable to query remote server for player list: " + e.getMessage());
-                }
-                queryState = QueryState.UNAVAILABLE;
-                nextQueryAttemptMillis = System.currentTimeMillis() + queryRetryDelayMillis;
+    /**
+     * Returns the shared, immutable player list snapshot. Never blocks: a due remote query is only
+     * started here and its result shows up in later forms.
+     */
+    private PlayerNameIndex.Snapshot playerNameSnapshot() {
+        PlayerSettings players = config.players;
+        long now = System.currentTimeMillis();
+        if (!remoteRefresh) {
+            playerListFresh.increment();
+            return playerNames.names();
+        }
+        if (players.backgroundRefresh()) {
+            if (now - remotePlayerNamesTime > players.maxStaleMillis()) {
+                // the refresher has fallen behind; local names never need the network
+                playerListStale.increment();
+                return playerNames.localNames();
             }
+        } else if (now - remotePlayerNamesTime >= players.cacheDurationMillis()) {
+            playerListStale.increment();
+            refreshRemotePlayers();
+            return playerNames.names();
         }
-
-        List<String> result = new ArrayList<>(names);
-        result.sort(String.CASE_INSENSITIVE_ORDER);
-        return result;
+        playerListFresh.increment();
+        return playerNames.names();
     }
 
-    private boolean shouldAttemptQuery() {
-        if (queryState == QueryState.DISABLED || queryExplicitlyDisabled) {
-            return false;
-        }
-        if (queryState == QueryState.UNAVAILABLE) {
+    /**
+     * Starts a query for every backend that is neither running one nor backing off. Backends are queried
+     * in parallel and publish their names independently, so a slow one never delays the others.
+     */
+    private void refreshRemotePlayers() {
+        synchronized (playerListLock) {
+            if (!config.players.queryEnabled()) {
+                return;
+            }
             long now = System.currentTimeMillis();
-            if (now < nextQueryAttemptMillis) {
-                return false;
+            for (QueryTarget target : queryTargets) {
+                if (!target.inFlight && now >= target.nextAttemptMillis) {
+                    startRemoteQuery(target);
+                }
             }
-            queryState = QueryState.UNKNOWN;
         }
-        return true;
     }
 
-    private List<String> queryRemotePlayerNames() throws IOException {
-        RemoteServer remote = extension.geyserApi().defaultRemoteServer();
-        if (remote == null) {
-            return Collections.emptyList();
+    /**
+     * Scheduled on the saver thread to keep remote names warm. Skipped while no Bedrock player is
+     * online, since nobody could open a form.
+     */
+    private void refreshPlayerListInBackground() {
+        if (config.players.pauseWhenEmpty() && playerNames.localCount() == 0) {
+            return;
         }
+        refreshRemotePlayers();
+    }
 
-        String host = remote.address();
-        int port = queryPortOverride > 0 ? queryPortOverride : remote.port();
-        InetAddress address = InetAddress.getByName(host);
-
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(queryTimeoutMillis);
+    /**
+     * Adds a joining player to the name index. A query paused while the server was empty is started
+     * right away, so remote names are current before their first form.
+     */
+    void addOnlinePlayer(GeyserConnection connection) {
+        playerNames.add(connection.playerUuid(), connection.name());
+        if (config.players.backgroundRefresh()) {
+            refreshRemotePlayers();
+        }
+    }
 
-            int sessionId = ThreadLocalRandom.current().nextInt();
-            byte[] handshake = createHandshake(sessionId);
-            socket.send(new DatagramPacket(handshake, handshake.length, address, port));
+    void removeOnlinePlayer(GeyserConnection connection) {
+        playerNames.remove(connection.playerUuid());
+        formLimiter.remove(connection.playerUuid());
+        lanes.remove(connection.playerUuid());
+        dispatcher.remove(connection);
+    }
 
-            DatagramPacket response = new DatagramPacket(new byte[128], 128);
-            socket.receive(response);
+    private void startPlayerRefresher(PlayerSettings players) {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        if (players.backgroundRefresh()) {
+            refreshTask = executor.scheduleWithFixedDelay(this::refreshPlayerListInBackground, 0,
+                    players.refreshIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
 
-            ByteBuffer handshakeBuffer = ByteBuffer.wrap(response.getData(), 0, response.getLength());
-            if (!handshakeBuffer.hasRemaining() || handshakeBuffer.get() != (byte) 0x09) {
-                throw new IOException("Invalid handshake response");
-            }
-            if (handshakeBuffer.remaining() < 4) {
-                throw new IOException("Incomplete handshake response");
-            }
-            int responseSessionId = handshakeBuffer.getInt();
-            if (responseSessionId != sessionId) {
-                throw new IOException("Session ID mismatch");
+    private void startRemoteQuery(QueryTarget target) {
+        long generation = queryGeneration;
+        PlayerSettings players = config.players;
+        target.inFlight = true;
+        long start = System.nanoTime();
+        int timeout = players.queryTimeoutMillis();
+        CompletableFuture<List<String>> result = queryClient.query(target.host, target.port, timeout);
+        for (int i = 0; i < players.queryRetries(); i++) {
+            result = result.exceptionallyCompose(error -> queryClient.query(target.host, target.port, timeout));
+        }
+        result.whenComplete((javaPlayers, error) -> {
+            synchronized (playerListLock) {
+                if (generation != queryGeneration) {
+                    // the configuration was reloaded while this query was running
+                    return;
+                }
+                target.inFlight = false;
+                long now = System.currentTimeMillis();
+                if (error == null) {
+                    queryTime.recordSince(start);
+                    if (target.state == QueryState.UNAVAILABLE && target.failureLogged) {
+                        extension.logger().info("Remote server " + target + " answers player list queries again");
+                    }
+                    target.state = QueryState.ENABLED;
+                    target.names = javaPlayers;
+                    target.namesTime = now;
+                    target.failures = 0;
+                    target.failureLogged = false;
+                    target.nextAttemptMillis = 0L;
+                    remotePlayerNamesTime = now;
+                } else {
+                    queryFailures.increment();
+                    if (target.state != QueryState.UNAVAILABLE) {
+                        queryUnavailable.increment();
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    String message = cause instanceof TimeoutException ? "timed out" : cause.getMessage();
+                    if (!target.failureLogged) {
+                        extension.logger().warning("Unable to query remote server " + target + " for player list: " + message);
+                        target.failureLogged = true;
+                    } else if (extension.logger().isDebug()) {
+                        extension.logger().debug("Unable to query remote server " + target + " for player list: " + message);
+                    }
+                    target.state = QueryState.UNAVAILABLE;
+                    target.names = Collections.emptyList();
+                    target.failures++;
+                    // retry-seconds, doubled for every further consecutive failure up to max-retry-seconds
+                    long delay = players.queryRetryDelayMillis() << Math.min(target.failures - 1, 20);
+                    target.nextAttemptMillis = now + Math.min(delay, players.queryMaxRetryDelayMillis());
+                }
+                publishRemoteNames(now);
             }
-            String challenge = readNullTerminatedString(handshakeBuffer);
-            int challengeToken;
-            try {
-                challengeToken = Integer.parseInt(challenge.trim());
-            } catch (NumberFormatException e) {
-                throw new IOException("Invalid challenge token: " + challenge, e);
+        });
+    }
+
+    /**
+     * Publishes the names of every backend whose last answer is recent enough. Called with
+     * {@code playerListLock} held.
+     */
+    private void publishRemoteNames(long now) {
+        long maxStale = config.players.maxStaleMillis();
+        List<String> names = new ArrayList<>();
+        for (QueryTarget target : queryTargets) {
+            if (now - target.namesTime <= maxStale) {
+                names.addAll(target.names);
             }
+        }
+        playerNames.remote(names);
+    }
 
-            byte[] statRequest = createStatRequest(sessionId, challengeToken);
-            socket.send(new DatagramPacket(statRequest, statRequest.length, address, port));
+    private void execute(GeyserConnection connection, String command) {
+        dispatcher.dispatch(connection, List.of(command), 0L);
+    }
 
-            DatagramPacket statPacket = new DatagramPacket(new byte[4096], 4096);
-            socket.receive(statPacket);
-            byte[] statData = Arrays.copyOf(statPacket.getData(), statPacket.getLength());
-            return extractPlayersFromStat(statData);
+    private void sendCommand(GeyserConnection connection, String command) {
+        if (command.startsWith("/")) {
+            command = command.substring(1);
         }
+        commandsDispatched.increment();
+        connection.sendCommand(command);
     }
 
-    private byte[] createHandshake(int sessionId) {
-        ByteBuffer buffer = ByteBuffer.allocate(7);
-        buffer.put((byte) 0xFE);
-        buffer.put((byte) 0xFD);
-        buffer.put((byte) 0x09);
-        buffer.putInt(sessionId);
-        return buffer.array();
+    private void recordCommandUsage(GeyserConnection connection, String command) {
+        PlayerUsage.Settings settings = config.usageSettings;
+        UUID uuid = connection.playerUuid();
+        int id = dictionary.intern(command);
+        long now = System.currentTimeMillis();
+        UsageStore store = this.store;
+        PlayerUsage.JournalWriter writer = () -> store.append(uuid, command, now);
+        PlayerUsage record;
+        while (!(record = playerUsage(uuid, settings)).record(id, now, settings, writer)) {
+            Thread.onSpinWait();
+        }
+        expiryQueue.schedule(record);
     }
 
-    private byte[] createStatRequest(int sessionId, int challengeToken) {
-        ByteBuffer buffer = ByteBuffer.allocate(15);
-        buffer.put((byte) 0xFE);
-        buffer.put((byte) 0xFD);
-        buffer.put((byte) 0x00);
-        buffer.putInt(sessionId);
-        buffer.putInt(challengeToken);
-        buffer.putInt(0);
-        return buffer.array();
+    /**
+     * Returns the resident usage record of a player, loading it from the store on first access. The
+     * load runs outside the map so a slow store never holds a map bin lock; if two threads load the same
+     * player at once, the first record to be published wins and the other copy is dropped.
+     */
+    private PlayerUsage playerUsage(UUID uuid, PlayerUsage.Settings settings) {
+        PlayerUsage record = usage.get(uuid);
+        if (record != null) {
+            return record;
+        }
+        PlayerUsage loaded = loadPlayerUsage(uuid, settings);
+        record = usage.putIfAbsent(uuid, loaded);
+        if (record != null) {
+            return record;
+        }
+        expiryQueue.schedule(loaded);
+        return loaded;
     }
 
-    private String readNullTerminatedString(ByteBuffer buffer) {
-        StringBuilder builder = new StringBuilder();
-        while (buffer.hasRemaining()) {
-            byte value = buffer.get();
-            if (value == 0) {
-                break;
-            }
-            builder.append((char) (value & 0xFF));
+    /**
+     * Reads a player's usage from the store. If the store cannot be read the player starts from the
+     * defaults; their new increments are still stored.
+     */
+    private PlayerUsage loadPlayerUsage(UUID uuid, PlayerUsage.Settings settings) {
+        usageLoaded.increment();
+        PlayerUsage record = null;
+        long start = System.nanoTime();
+        try {
+            record = store.load(uuid);
+        } catch (IOException e) {
+            usageLoadFailures.increment();
+            extension.logger().error("Unable to load usage data", e);
         }
-        return builder.toString();
+        usageLoadTime.recordSince(start);
+        return record != null ? record : PlayerUsage.withDefaults(settings);
+    }
+
+    /**
+     * Loads a player's usage in the background when they join so the first Common menu is instant. With
+     * a shared store, a record left resident from an earlier visit is read again, since the player may
+     * have used other proxies in between.
+     */
+    void preloadUsage(GeyserConnection connection) {
+        UUID uuid = connection.playerUuid();
+        executor.execute(() -> {
+            PlayerUsage resident = usage.get(uuid);
+            if (resident != null && resident.releasedAt() != 0L && store.shared()) {
+                evict(uuid, resident, store.persisted());
+            }
+            playerUsage(uuid, config.usageSettings).released(0L);
+        });
     }
 
-    private List<String> extractPlayersFromStat(byte[] data) {
-        if (data.length <= 5) {
-            return Collections.emptyList();
+    /**
+     * Starts the eviction countdown for a player who disconnected.
+     */
+    void releaseUsage(GeyserConnection connection) {
+        PlayerUsage record = usage.get(connection.playerUuid());
+        if (record != null) {
+            record.released(System.currentTimeMillis());
         }
+    }
 
-        int offset = 5;
-        List<String> segments = new ArrayList<>();
-        int start = offset;
-        for (int i = offset; i < data.length; i++) {
-            if (data[i] == 0) {
-                segments.add(new String(data, start, i - start, StandardCharsets.UTF_8));
-                start = i + 1;
+    private String toLabel(String command) {
+        Macro macro = config.macros.get(command);
+        if (macro != null) {
+            return macro.label;
+        }
+        if (Macro.isKey(command)) {
+            // a macro that was removed from the configuration
+            StringJoiner label = new StringJoiner(", ");
+            for (String step : Macro.commands(command)) {
+                label.add(toLabel(step));
             }
+            return label.toString();
         }
-        if (start < data.length) {
-            segments.add(new String(data, start, data.length - start, StandardCharsets.UTF_8));
+        CommandTemplate template = config.templates.get(command);
+        if (template != null) {
+            return template.label;
         }
+        return command.replaceAll("\\s*\\{[^}]+}\\s*", " ").trim();
+    }
 
-        int playerIndex = -1;
-        for (int i = 0; i < segments.size(); i++) {
-            String value = sanitizeSegment(segments.get(i));
-            if ("player_".equals(value)) {
-                playerIndex = i;
-                break;
-            }
+    private UsageStore createStore(UsageConfig settings) {
+        if (settings.store() == UsageStore.Type.SQL) {
+            SqlSettings sql = settings.sql();
+            return new SqlUsageStore(extension, dictionary, metrics, sql.url(), sql.driver(), sql.user(), sql.password());
         }
+        return new FileUsageStore(extension, dictionary, metrics);
+    }
 
-        if (playerIndex == -1) {
-            return Collections.emptyList();
+    /**
+     * Opens the usage store, which recovers anything an unclean shutdown left behind, so every
+     * non-resident player can be served straight from it.
+     */
+    private void loadUsage() {
+        usage.clear();
+        long start = System.nanoTime();
+        try {
+            store.open(config.usageSettings);
+        } catch (IOException e) {
+            extension.logger().error("Unable to load usage data", e);
         }
+        usageOpenTime.recordSince(start);
+    }
 
-        int index = playerIndex + 1;
-        while (index < segments.size() && sanitizeSegment(segments.get(index)).isEmpty()) {
-            index++;
+    /**
+     * Writes queued usage increments to the store.
+     */
+    private void commitUsage() {
+        long start = System.nanoTime();
+        try {
+            store.commit(config.usageSettings);
+        } catch (IOException e) {
+            extension.logger().error("Unable to write usage data", e);
         }
+        usageCommitTime.recordSince(start);
+    }
 
-        List<String> players = new ArrayList<>();
-        for (; index < segments.size(); index++) {
-            String player = sanitizeSegment(segments.get(index));
-            if (player.isEmpty()) {
-                break;
-            }
-            players.add(player);
+    /**
+     * Lets the store compact or prune what it holds, then unloads records that are no longer needed.
+     */
+    private void compactUsage() {
+        try {
+            store.compact(config.usageSettings);
+        } catch (IOException e) {
+            extension.logger().error("Unable to compact usage data", e);
         }
-        return players;
+        evictUsage();
+        reclaimCommands();
     }
 
-    private String sanitizeSegment(String value) {
-        if (value == null || value.isEmpty()) {
-            return "";
+    /**
+     * Frees the dictionary ids of commands that no resident record, configured command or the store
+     * still uses, such as commands built from arguments that have since expired or been trimmed.
+     */
+    private void reclaimCommands() {
+        Config config = this.config;
+        BitSet live = new BitSet(dictionary.size());
+        for (PlayerUsage record : usage.values()) {
+            record.forEach((id, count, last, score) -> live.set(id));
+        }
+        for (int id : config.usageSettings.defaultIds) {
+            live.set(id);
         }
-        int start = 0;
-        while (start < value.length() && (value.charAt(start) == 0 || value.charAt(start) == 1)) {
-            start++;
+        for (CommandTemplate template : config.templates.values()) {
+            live.set(dictionary.intern(template.raw));
         }
-        if (start >= value.length()) {
-            return "";
+        for (Macro macro : config.macros.values()) {
+            live.set(dictionary.intern(macro.key));
         }
-        return value.substring(start);
+        store.markCommands(live);
+        dictionary.reclaim(live);
     }
 
-    private void execute(GeyserConnection connection, String command) {
-        if (command.startsWith("/")) {
-            command = command.substring(1);
+    /**
+     * Drops records of players who disconnected longer than {@code evict-after-seconds} ago, then the
+     * least recently used records while more than {@code max-players} remain resident. Records with
+     * increments that the usage store has not persisted yet stay until it has.
+     */
+    private void evictUsage() {
+        UsageConfig settings = config.usage;
+        long now = System.currentTimeMillis();
+        long persisted = store.persisted();
+        List<Map.Entry<UUID, PlayerUsage>> candidates = new ArrayList<>();
+        for (Map.Entry<UUID, PlayerUsage> entry : usage.entrySet()) {
+            PlayerUsage record = entry.getValue();
+            long released = record.releasedAt();
+            if (released == 0L || now - released < settings.residencyMillis() || !evict(entry.getKey(), record, persisted)) {
+                candidates.add(entry);
+            }
         }
-        connection.sendCommand(command);
-    }
 
-    private void recordCommandUsage(GeyserConnection connection, String command) {
-        LinkedHashMap<String, Integer> map = usage.computeIfAbsent(connection.playerUuid(), uuid -> {
-            LinkedHashMap<String, Integer> defaults = new LinkedHashMap<>();
-            for (String def : defaultCommands) {
-                defaults.put(def, 0);
+        int excess = usage.size() - settings.maxResidentPlayers();
+        if (excess <= 0) {
+            return;
+        }
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess()));
+        for (Map.Entry<UUID, PlayerUsage> entry : candidates) {
+            if (excess <= 0) {
+                break;
             }
-            return defaults;
-        });
-        Map<String, Long> times = usageTimes.computeIfAbsent(connection.playerUuid(), uuid -> {
-            Map<String, Long> defaults = new HashMap<>();
-            for (String def : defaultCommands) {
-                defaults.put(def, 0L);
+            if (evict(entry.getKey(), entry.getValue(), persisted)) {
+                excess--;
             }
-            return defaults;
-        });
-        int previous = map.getOrDefault(command, 0);
-        map.merge(command, 1, Integer::sum);
-        times.put(command, System.currentTimeMillis());
+        }
+    }
 
-        if (!defaultCommands.contains(command) && previous == 0) {
-            for (String def : defaultCommands) {
-                Integer count = map.get(def);
-                if (count != null && count == 0) {
-                    map.remove(def);
-                    times.remove(def);
-                    break;
-                }
-            }
+    private boolean evict(UUID uuid, PlayerUsage record, long persisted) {
+        if (!record.tryEvict(persisted)) {
+            return false;
         }
-        cleanupUsage(connection.playerUuid(), map, times);
+        usage.remove(uuid, record);
+        expiryQueue.remove(record);
+        return true;
     }
 
-    private String toLabel(String command) {
-        return command.replaceAll("\\s*\\{[^}]+}\\s*", " ").trim();
+    /**
+     * Removes expired entries from resident records whose oldest entry may have passed
+     * {@code expiry-seconds}. Each run checks at most {@link #SWEEP_BATCH} records, so a backlog after a
+     * reload is worked off over several runs instead of stalling the saver thread.
+     */
+    private void sweepUsage() {
+        long now = System.currentTimeMillis();
+        PlayerUsage.Settings settings = config.usageSettings;
+        for (PlayerUsage record : expiryQueue.due(now, SWEEP_BATCH)) {
+            expiryQueue.schedule(record, record.sweep(now, settings));
+            usageSwept.increment();
+        }
     }
 
-    private void loadUsage() {
-        usage.clear();
-        usageTimes.clear();
-        if (Files.notExists(usagePath)) {
-            return;
+    private void startSaver(UsageConfig settings) {
+        if (saveTask != null) {
+            saveTask.cancel(false);
         }
-        try (Reader reader = Files.newBufferedReader(usagePath)) {
-            Yaml yaml = new Yaml();
-            Map<String, Object> root = yaml.load(reader);
-            if (root == null) {
-                return;
-            }
-            for (Map.Entry<String, Object> entry : root.entrySet()) {
-                UUID uuid = UUID.fromString(entry.getKey());
-                Map<String, Object> cmds = (Map<String, Object>) entry.getValue();
-                LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
-                Map<String, Long> times = new HashMap<>();
-                for (Map.Entry<String, Object> cmd : cmds.entrySet()) {
-                    Object val = cmd.getValue();
-                    if (val instanceof Map<?, ?> data) {
-                        Number count = (Number) data.get("count");
-                        Number last = (Number) data.get("last");
-                        map.put(cmd.getKey(), count == null ? 0 : count.intValue());
-                        times.put(cmd.getKey(), last == null ? 0L : last.longValue());
-                    } else if (val instanceof Number num) { // legacy format
-                        map.put(cmd.getKey(), num.intValue());
-                        times.put(cmd.getKey(), 0L);
-                    }
-                }
-                usage.put(uuid, map);
-                usageTimes.put(uuid, times);
-            }
-        } catch (IOException e) {
-            extension.logger().error("Unable to load usage data", e);
+        if (commitTask != null) {
+            commitTask.cancel(false);
+        }
+        if (evictTask != null) {
+            evictTask.cancel(false);
+        }
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
         }
+        long commitInterval = settings.commitIntervalMillis();
+        long saveInterval = settings.saveIntervalSeconds();
+        commitTask = executor.scheduleWithFixedDelay(this::commitUsage, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        saveTask = executor.scheduleWithFixedDelay(this::compactUsage, saveInterval, saveInterval, TimeUnit.SECONDS);
+        evictTask = executor.scheduleWithFixedDelay(this::evictUsage, 30, 30, TimeUnit.SECONDS);
+        sweepTask = executor.scheduleWithFixedDelay(this::sweepUsage, 1, 1, TimeUnit.SECONDS);
     }
 
-    private void saveUsage() {
+    void shutdown() {
+        synchronized (this) {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException ignored) {
+                    // the watcher thread exits either way
+                }
+            }
+        }
+        try {
+            // commands still queued are journaled before the final compaction below
+            lanes.shutdown(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queryClient.close();
+        // players are being disconnected; the rest of their macros would go nowhere
+        commandScheduler.shutdownNow();
+        executor.shutdown();
         try {
-            Files.createDirectories(usagePath.getParent());
-            Map<String, Object> root = new LinkedHashMap<>();
-            for (Map.Entry<UUID, LinkedHashMap<String, Integer>> entry : usage.entrySet()) {
-                Map<String, Object> cmds = new LinkedHashMap<>();
-                Map<String, Long> times = usageTimes.getOrDefault(entry.getKey(), Collections.emptyMap());
-                for (Map.Entry<String, Integer> cmd : entry.getValue().entrySet()) {
-                    Map<String, Object> data = new LinkedHashMap<>();
-                    data.put("count", cmd.getValue());
-                    Long last = times.get(cmd.getKey());
-                    if (last != null) {
-                        data.put("last", last);
-                    }
-                    cmds.put(cmd.getKey(), data);
-                }
-                root.put(entry.getKey().toString(), cmds);
-            }
-            Yaml yaml = new Yaml();
-            try (Writer writer = Files.newBufferedWriter(usagePath)) {
-                yaml.dump(root, writer);
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                extension.logger().warning("Usage saver did not stop in time");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactUsage();
+        try {
+            store.close();
         } catch (IOException e) {
-            extension.logger().error("Unable to save usage data", e);
+            extension.logger().error("Unable to close usage store", e);
+        }
+        if (config.metrics.fileIntervalSeconds() > 0) {
+            writeMetrics();
         }
+        metrics.unregisterMBean();
     }
 
-    private void startSaver() {
-        if (saveTask != null) {
-            saveTask.cancel(false);
+    /**
+     * One generation of menus.yml: menus, compiled templates, defaults and settings. Built and validated
+     * off the click path and never modified afterwards, so publishing it is a single volatile write and
+     * forms opened against an older generation simply finish with it.
+     */
+    private static final class Config {
+        final Map<String, MenuNode> menus;
+        final Map<String, CommandTemplate> templates;
+        final Map<String, Macro> macros;
+        final List<String> defaultCommands;
+        final PlayerUsage.Settings usageSettings;
+        final UsageConfig usage;
+        final PlayerSettings players;
+        final MetricsSettings metrics;
+        final TriggerSettings trigger;
+        final ExecutionSettings execution;
+
+        private Config(Map<String, MenuNode> menus, Map<String, CommandTemplate> templates, Map<String, Macro> macros,
+                       List<String> defaultCommands,
+                       PlayerUsage.Settings usageSettings, UsageConfig usage, PlayerSettings players,
+                       MetricsSettings metrics, TriggerSettings trigger, ExecutionSettings execution) {
+            this.menus = menus;
+            this.templates = templates;
+            this.macros = macros;
+            this.defaultCommands = defaultCommands;
+            this.usageSettings = usageSettings;
+            this.usage = usage;
+            this.players = players;
+            this.metrics = metrics;
+            this.trigger = trigger;
+            this.execution = execution;
         }
-        saveTask = executor.scheduleAtFixedRate(this::saveUsage, saveIntervalSeconds, saveIntervalSeconds, TimeUnit.SECONDS);
-    }
 
-    private void cleanupUsage(UUID uuid, Map<String, Integer> counts, Map<String, Long> times) {
-        // uuid currently unused but kept for potential future per-player operations
-        long now = System.currentTimeMillis();
-        Iterator<Map.Entry<String, Long>> iter = times.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, Long> entry = iter.next();
-            String command = entry.getKey();
-            if (defaultCommands.contains(command) && counts.getOrDefault(command, 0) == 0) {
-                continue;
+        /**
+         * The configuration used until menus.yml has been read successfully.
+         */
+        static Config defaults(Extension extension, CommandDictionary dictionary, Metrics metrics) {
+            return parse(Map.of("menus", Map.of()), Collections.emptyMap(), extension, dictionary, metrics);
+        }
+
+        /**
+         * Builds a configuration from the parsed menus.yml root and the {@code menus} sections of the files
+         * in the menus/ directory.
+         *
+         * @throws IllegalArgumentException if menus.yml is empty, no menus are defined anywhere or a menu id
+         *                                  is defined more than once
+         * @throws ClassCastException if a section has the wrong shape
+         */
+        static Config parse(Map<String, Object> root, Map<Path, Map<String, Object>> menuFiles,
+                            Extension extension, CommandDictionary dictionary, Metrics metrics) {
+            if (root == null) {
+                throw new IllegalArgumentException("menus.yml is empty");
+            }
+            Object menusObj = root.get("menus");
+            if (menusObj == null && menuFiles.isEmpty()) {
+                throw new IllegalArgumentException("menus.yml has no menus section and the menus directory is empty");
+            }
+            if (menusObj != null && !(menusObj instanceof Map<?, ?>)) {
+                throw new IllegalArgumentException("menus in menus.yml is not a section");
             }
-            if (now - entry.getValue() > usageExpiryMillis) {
-                counts.remove(command);
-                iter.remove();
+
+            Map<String, Menu> menus = new HashMap<>();
+            Map<String, String> origins = new HashMap<>();
+            if (menusObj != null) {
+                addMenus(menus, origins, (Map<?, ?>) menusObj, "menus.yml");
+            }
+            for (Map.Entry<Path, Map<String, Object>> file : menuFiles.entrySet()) {
+                addMenus(menus, origins, file.getValue(), "menus/" + file.getKey().getFileName());
             }
+
+            Menu mainMenu = menus.get("main");
+            if (mainMenu != null) {
+                for (int i = 0; i < mainMenu.buttons.size(); i++) {
+                    MenuButton button = mainMenu.buttons.get(i);
+                    if ("common".equalsIgnoreCase(button.menu)) {
+                        if (i != 0) {
+                            mainMenu.buttons.remove(i);
+                            mainMenu.buttons.add(0, button);
+                        }
+                        break;
+                    }
+                }
+            } else if (!menus.isEmpty()) {
+                extension.logger().warning("menus.yml has no main menu, the emote will not open anything");
+            }
+
+            List<String> defaultCommands = new ArrayList<>();
+            Map<String, Object> defaults = (Map<String, Object>) root.get("defaults");
+            if (defaults != null) {
+                List<String> common = (List<String>) defaults.get("common");
+                if (common != null) {
+                    defaultCommands.addAll(common);
+                }
+            }
+
+            // compile every command template referenced by the configuration so clicks only need a lookup
+            Map<String, CommandTemplate> templates = new HashMap<>();
+            Map<String, Macro> macros = new HashMap<>();
+            for (Menu menu : menus.values()) {
+                if (menu.command != null) {
+                    compile(templates, menu.command, extension);
+                }
+                if (menu.commands != null) {
+                    compileMacro(macros, templates, menu.commands, menu.title, menu.delayMillis, extension);
+                }
+                for (MenuButton button : menu.buttons) {
+                    if (button.command != null) {
+                        compile(templates, button.command, extension);
+                    }
+                    if (button.commands != null) {
+                        compileMacro(macros, templates, button.commands, button.text, button.delayMillis, extension);
+                    }
+                }
+            }
+            List<String> interned = new ArrayList<>(defaultCommands.size());
+            for (String def : defaultCommands) {
+                interned.add(compile(templates, def, extension).raw);
+            }
+            for (CommandTemplate template : templates.values()) {
+                dictionary.intern(template.raw);
+            }
+            for (Macro macro : macros.values()) {
+                dictionary.intern(macro.key);
+            }
+            Map<String, MenuNode> nodes = compileGraph(menus, templates, macros, extension, metrics);
+
+            UsageConfig usage = UsageConfig.parse((Map<String, Object>) root.get("usage"), extension);
+            PlayerUsage.Settings usageSettings =
+                    new PlayerUsage.Settings(dictionary, interned, usage.maxCommands(), usage.expiryMillis(),
+                            usage.ranking(), usage.halfLifeMillis(), usage.minScore());
+            PlayerSettings players = PlayerSettings.parse((Map<String, Object>) root.get("players"));
+            MetricsSettings metricsSettings = MetricsSettings.parse((Map<String, Object>) root.get("metrics"));
+            TriggerSettings trigger = TriggerSettings.parse((Map<String, Object>) root.get("trigger"));
+            ExecutionSettings execution = ExecutionSettings.parse((Map<String, Object>) root.get("execution"), extension);
+            return new Config(Collections.unmodifiableMap(nodes), Collections.unmodifiableMap(templates),
+                    Collections.unmodifiableMap(macros), Collections.unmodifiableList(interned), usageSettings, usage, players, metricsSettings, trigger,
+                    execution);
         }
 
-        trimToMax(counts, times);
-        ensureDefaultTimes(counts, times);
-        ensureDefaultEntries(counts, times);
-    }
+        /**
+         * Turns the parsed menus into nodes whose buttons point straight at their target node or compiled
+         * command. Problems a player would otherwise only discover by clicking are logged here, once.
+         */
+        private static Map<String, MenuNode> compileGraph(Map<String, Menu> menus, Map<String, CommandTemplate> templates,
+                                                          Map<String, Macro> macros, Extension extension,
+                                                          Metrics metrics) {
+            Map<String, MenuNode> nodes = new HashMap<>();
+            for (Map.Entry<String, Menu> entry : menus.entrySet()) {
+                String id = entry.getKey();
+                Menu menu = entry.getValue();
+                MenuType type = "common".equalsIgnoreCase(id) ? MenuType.COMMON : MenuType.of(menu.type);
+                if (type == null) {
+                    extension.logger().warning("Menu " + id + " has unsupported type " + menu.type + " and is ignored");
+                    continue;
+                }
+                nodes.put(id, new MenuNode(id, type, menu.title, metrics.counter("menus.opened." + id)));
+            }
 
-    private void trimToMax(Map<String, Integer> counts, Map<String, Long> times) {
-        if (counts.size() <= maxCommands) {
-            return;
+            for (MenuNode node : nodes.values()) {
+                Menu menu = menus.get(node.id);
+                if (node.type == MenuType.SIMPLE) {
+                    MenuAction[] actions = new MenuAction[menu.buttons.size()];
+                    for (int i = 0; i < actions.length; i++) {
+                        actions[i] = compileButton(node, menu.buttons.get(i), nodes, templates, macros, extension);
+                    }
+                    node.form = SimpleFormModel.of(menu, actions);
+                } else if (node.type == MenuType.CUSTOM) {
+                    if (menu.commands != null) {
+                        Macro macro = macros.get(Macro.key(menu.commands));
+                        node.action = (manager, connection) -> manager.runMacro(connection, macro);
+                    } else if (menu.command == null) {
+                        extension.logger().warning("Custom menu " + node.id + " has no command");
+                        node.action = MenuAction.NONE;
+                    } else {
+                        CommandTemplate template = templates.get(menu.command);
+                        String title = menu.title;
+                        node.action = (manager, connection) -> manager.runCommand(connection, title, template);
+                    }
+                }
+            }
+            reportCycles(nodes, extension);
+            return nodes;
+        }
+
+        private static MenuAction compileButton(MenuNode node, MenuButton button, Map<String, MenuNode> nodes,
+                                                Map<String, CommandTemplate> templates, Map<String, Macro> macros,
+                                                Extension extension) {
+            if (button.menu != null) {
+                MenuNode target = nodes.get(button.menu);
+                if (target == null) {
+                    extension.logger().warning("Button " + button.text + " in menu " + node.id
+                            + " links to unknown menu " + button.menu);
+                    return MenuAction.NONE;
+                }
+                node.links.add(target);
+                return (manager, connection) -> manager.openNode(connection, target);
+            }
+            if (button.commands != null) {
+                Macro macro = macros.get(Macro.key(button.commands));
+                return (manager, connection) -> manager.runMacro(connection, macro);
+            }
+            if (button.command != null) {
+                CommandTemplate template = templates.get(button.command);
+                String title = button.text;
+                return (manager, connection) -> manager.runCommand(connection, title, template);
+            }
+            extension.logger().warning("Button " + button.text + " in menu " + node.id + " has neither a menu nor a command");
+            return MenuAction.NONE;
+        }
+
+        /**
+         * Logs every loop of menu links. Each step still needs a click, so a loop cannot run by itself, but
+         * it is usually an accidental link rather than a deliberate way back.
+         */
+        private static void reportCycles(Map<String, MenuNode> nodes, Extension extension) {
+            Map<MenuNode, Boolean> visited = new HashMap<>();
+            for (String id : new TreeSet<>(nodes.keySet())) {
+                findCycles(nodes.get(id), visited, new ArrayDeque<>(), extension);
+            }
         }
 
-        List<String> commands = new ArrayList<>(counts.keySet());
-        commands.sort((a, b) -> {
-            int countCompare = Integer.compare(counts.getOrDefault(a, 0), counts.getOrDefault(b, 0));
-            if (countCompare != 0) {
-                return countCompare;
+        /**
+         * Depth-first search; {@code visited} maps nodes on the current path to {@code false} and finished
+         * nodes to {@code true}, so each loop is reported once.
+         */
+        private static void findCycles(MenuNode node, Map<MenuNode, Boolean> visited, Deque<MenuNode> path,
+                                       Extension extension) {
+            Boolean done = visited.get(node);
+            if (done != null) {
+                if (!done) {
+                    StringJoiner cycle = new StringJoiner(" -> ");
+                    boolean inCycle = false;
+                    for (MenuNode step : path) {
+                        inCycle |= step == node;
+                        if (inCycle) {
+                            cycle.add(step.id);
+                        }
+                    }
+                    cycle.add(node.id);
+                    extension.logger().warning("Menus link in a cycle: " + cycle);
+                }
+                return;
             }
+            visited.put(node, false);
+            path.addLast(node);
+            for (MenuNode target : node.links) {
+                findCycles(target, visited, path, extension);
+            }
+            path.removeLast();
+            visited.put(node, true);
+        }
 
-            long timeA = times.getOrDefault(a, 0L);
-            long timeB = times.getOrDefault(b, 0L);
-            int timeCompare = Long.compare(timeA, timeB);
-            if (timeCompare != 0) {
-                return timeCompare;
+        private static void addMenus(Map<String, Menu> menus, Map<String, String> origins, Map<?, ?> section, String origin) {
+            for (Map.Entry<?, ?> entry : section.entrySet()) {
+                String id = String.valueOf(entry.getKey());
+                if (!(entry.getValue() instanceof Map<?, ?> menuMap)) {
+                    throw new IllegalArgumentException("Menu " + id + " in " + origin + " is not a section");
+                }
+                String previous = origins.putIfAbsent(id, origin);
+                if (previous != null) {
+                    throw new IllegalArgumentException("Menu " + id + " is defined in both " + previous + " and " + origin);
+                }
+                menus.put(id, Menu.fromMap((Map<String, Object>) menuMap));
             }
+        }
+
+        private static CommandTemplate compile(Map<String, CommandTemplate> templates, String command, Extension extension) {
+            return templates.computeIfAbsent(command, raw -> CommandTemplate.parse(raw, extension));
+        }
 
-            boolean aDefault = defaultCommands.contains(a);
-            boolean bDefault = defaultCommands.contains(b);
-            if (aDefault != bDefault) {
-                return aDefault ? 1 : -1;
+        /**
+         * Compiles a {@code commands} list. The same list used by several buttons is one macro, labelled
+         * after the first of them.
+         */
+        private static void compileMacro(Map<String, Macro> macros, Map<String, CommandTemplate> templates,
+                                         List<String> commands, String label, long delayMillis, Extension extension) {
+            String key = Macro.key(commands);
+            if (macros.containsKey(key)) {
+                return;
+            }
+            CommandTemplate[] steps = new CommandTemplate[commands.size()];
+            for (int i = 0; i < steps.length; i++) {
+                steps[i] = compile(templates, commands.get(i), extension);
             }
+            macros.put(key, new Macro(key, label, steps, delayMillis));
+        }
+    }
 
-            return a.compareTo(b);
-        });
+    /**
+     * Settings of the {@code usage} section.
+     */
+    private record UsageConfig(long saveIntervalSeconds, int maxCommands, long expiryMillis,
+                               long commitIntervalMillis, long compactBytes,
+                               UsageJournal.FsyncPolicy fsync, long fsyncIntervalMillis,
+                               long residencyMillis, int maxResidentPlayers,
+                               PlayerUsage.Ranking ranking, long halfLifeMillis, float minScore,
+                               int backups, UsageStore.Type store, SqlSettings sql) {
+
+        static UsageConfig parse(Map<String, Object> config, Extension extension) {
+            long saveIntervalSeconds = 300;
+            int maxCommands = 50;
+            long expiryMillis = TimeUnit.DAYS.toMillis(7);
+            long commitIntervalMillis = 1000;
+            long compactBytes = 4L * 1024 * 1024;
+            UsageJournal.FsyncPolicy fsync = UsageJournal.FsyncPolicy.INTERVAL;
+            long fsyncIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+            long residencyMillis = TimeUnit.MINUTES.toMillis(10);
+            int maxResidentPlayers = 5000;
+            PlayerUsage.Ranking ranking = PlayerUsage.Ranking.COUNT;
+            long halfLifeMillis = TimeUnit.DAYS.toMillis(3);
+            float minScore = 0.05f;
+            int backups = 3;
+            UsageStore.Type store = UsageStore.Type.FILE;
+            String sqlUrl = null;
+            String sqlDriver = SqlUsageStore.DEFAULT_DRIVER;
+            String sqlUser = null;
+            String sqlPassword = null;
+
+            if (config != null) {
+                Number flush = (Number) config.get("flush-interval-seconds");
+                if (flush != null) {
+                    saveIntervalSeconds = flush.longValue();
+                }
+                Number max = (Number) config.get("max-commands");
+                if (max != null) {
+                    maxCommands = max.intValue();
+                }
+                Number expiry = (Number) config.get("expiry-seconds");
+                if (expiry != null) {
+                    expiryMillis = expiry.longValue() * 1000L;
+                }
 
-        int toRemove = counts.size() - maxCommands;
-        for (String command : commands) {
-            if (toRemove <= 0) {
-                break;
+                Map<String, Object> journal = (Map<String, Object>) config.get("journal");
+                if (journal != null) {
+                    Object commitObj = journal.get("commit-interval-ms");
+                    if (commitObj instanceof Number number && number.longValue() > 0) {
+                        commitIntervalMillis = number.longValue();
+                    }
+
+                    Object compactObj = journal.get("compact-bytes");
+                    if (compactObj instanceof Number number && number.longValue() > 0) {
+                        compactBytes = number.longValue();
+                    }
+
+                    Object fsyncObj = journal.get("fsync");
+                    if (fsyncObj instanceof String policy) {
+                        try {
+                            fsync = UsageJournal.FsyncPolicy.valueOf(policy.trim().toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            extension.logger().warning("Unknown journal fsync policy: " + policy + ", defaulting to interval");
+                        }
+                    }
+
+                    Object fsyncIntervalObj = journal.get("fsync-interval-ms");
+                    if (fsyncIntervalObj instanceof Number number && number.longValue() >= 0) {
+                        fsyncIntervalMillis = number.longValue();
+                    }
+                }
+
+                Object backupsObj = config.get("backups");
+                if (backupsObj instanceof Number number && number.intValue() >= 0) {
+                    backups = number.intValue();
+                }
+
+                Object storeObj = config.get("store");
+                if (storeObj instanceof String type) {
+                    try {
+                        store = UsageStore.Type.valueOf(type.trim().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        extension.logger().warning("Unknown usage store: " + type + ", defaulting to file");
+                    }
+                }
+
+                Map<String, Object> sql = (Map<String, Object>) config.get("sql");
+                if (sql != null) {
+                    if (sql.get("url") instanceof String url && !url.isBlank()) {
+                        sqlUrl = url.trim();
+                    }
+                    if (sql.get("driver") instanceof String driver && !driver.isBlank()) {
+                        sqlDriver = driver.trim();
+                    }
+                    if (sql.get("user") instanceof String user && !user.isEmpty()) {
+                        sqlUser = user;
+                    }
+                    if (sql.get("password") instanceof String password && !password.isEmpty()) {
+                        sqlPassword = password;
+                    }
+                }
+
+                Map<String, Object> residency = (Map<String, Object>) config.get("residency");
+                if (residency != null) {
+                    Object evictObj = residency.get("evict-after-seconds");
+                    if (evictObj instanceof Number number && number.longValue() >= 0) {
+                        residencyMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                    }
+
+                    Object maxObj = residency.get("max-players");
+                    if (maxObj instanceof Number number && number.intValue() > 0) {
+                        maxResidentPlayers = number.intValue();
+                    }
+                }
+
+                Object rankingObj = config.get("ranking");
+                if (rankingObj instanceof String mode) {
+                    try {
+                        ranking = PlayerUsage.Ranking.valueOf(mode.trim().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        extension.logger().warning("Unknown usage ranking: " + mode + ", defaulting to count");
+                    }
+                }
+
+                Map<String, Object> frecency = (Map<String, Object>) config.get("frecency");
+                if (frecency != null) {
+                    Object halfLifeObj = frecency.get("half-life-seconds");
+                    if (halfLifeObj instanceof Number number && number.longValue() > 0) {
+                        halfLifeMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                    }
+
+                    Object minScoreObj = frecency.get("min-score");
+                    if (minScoreObj instanceof Number number && number.doubleValue() >= 0) {
+                        minScore = number.floatValue();
+                    }
+                }
             }
-            counts.remove(command);
-            times.remove(command);
-            toRemove--;
+            if (saveIntervalSeconds <= 0) {
+                throw new IllegalArgumentException("usage.flush-interval-seconds must be positive");
+            }
+            return new UsageConfig(saveIntervalSeconds, maxCommands, expiryMillis, commitIntervalMillis, compactBytes,
+                    fsync, fsyncIntervalMillis, residencyMillis, maxResidentPlayers, ranking, halfLifeMillis, minScore,
+                    backups, store, new SqlSettings(sqlUrl, sqlDriver, sqlUser, sqlPassword));
         }
     }
 
-    private void ensureDefaultTimes(Map<String, Integer> counts, Map<String, Long> times) {
-        for (String command : defaultCommands) {
-            if (counts.containsKey(command)) {
-                times.putIfAbsent(command, 0L);
+    /**
+     * Settings of the {@code usage.sql} section. A {@code null} url selects the embedded H2 database.
+     */
+    private record SqlSettings(String url, String driver, String user, String password) {
+    }
+
+    /**
+     * Settings of the {@code players} section.
+     */
+    private record PlayerSettings(long cacheDurationMillis, int searchPageSize, boolean backgroundRefresh,
+                                  long refreshIntervalMillis, long maxStaleMillis, boolean pauseWhenEmpty,
+                                  boolean queryEnabled, List<String> queryTargets, int queryPortOverride,
+                                  int queryTimeoutMillis, int queryRetries, long queryRetryDelayMillis,
+                                  long queryMaxRetryDelayMillis) {
+
+        static PlayerSettings parse(Map<String, Object> config) {
+            long cacheDurationMillis = TimeUnit.SECONDS.toMillis(3);
+            int searchPageSize = 20;
+            boolean backgroundRefresh = true;
+            long refreshIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+            long maxStaleMillis = TimeUnit.SECONDS.toMillis(60);
+            boolean pauseWhenEmpty = true;
+            boolean queryEnabled = true;
+            List<String> queryTargets = Collections.emptyList();
+            int queryPortOverride = -1;
+            int queryTimeoutMillis = 1500;
+            int queryRetries = 1;
+            long queryRetryDelayMillis = TimeUnit.SECONDS.toMillis(30);
+            long queryMaxRetryDelayMillis = TimeUnit.MINUTES.toMillis(5);
+
+            if (config != null) {
+                Object cacheObj = config.get("cache-seconds");
+                if (cacheObj instanceof Number number) {
+                    cacheDurationMillis = TimeUnit.SECONDS.toMillis(Math.max(0, number.longValue()));
+                }
+
+                Object searchObj = config.get("search");
+                if (searchObj instanceof Map<?, ?> searchMap) {
+                    Object pageObj = searchMap.get("page-size");
+                    if (pageObj instanceof Number number && number.intValue() > 0) {
+                        searchPageSize = number.intValue();
+                    }
+                }
+
+                Object refreshObj = config.get("background-refresh");
+                if (refreshObj instanceof Map<?, ?> refreshMap) {
+                    Object enabledObj = refreshMap.get("enabled");
+                    if (enabledObj instanceof Boolean bool) {
+                        backgroundRefresh = bool;
+                    }
+
+                    Object intervalObj = refreshMap.get("interval-seconds");
+                    if (intervalObj instanceof Number number && number.longValue() > 0) {
+                        refreshIntervalMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                    }
+
+                    Object staleObj = refreshMap.get("max-stale-seconds");
+                    if (staleObj instanceof Number number && number.longValue() > 0) {
+                        maxStaleMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                    }
+
+                    Object pauseObj = refreshMap.get("pause-when-empty");
+                    if (pauseObj instanceof Boolean bool) {
+                        pauseWhenEmpty = bool;
+                    }
+                }
+
+                Object queryObj = config.get("query");
+                if (queryObj instanceof Map<?, ?> queryMap) {
+                    Object enabledObj = queryMap.get("enabled");
+                    if (enabledObj instanceof Boolean bool) {
+                        queryEnabled = bool;
+                    }
+
+                    Object targetsObj = queryMap.get("targets");
+                    if (targetsObj instanceof List<?> list) {
+                        List<String> targets = new ArrayList<>();
+                        for (Object target : list) {
+                            if (target != null) {
+                                targets.add(target.toString().trim());
+                            }
+                        }
+                        queryTargets = Collections.unmodifiableList(targets);
+                    }
+
+                    Object portObj = queryMap.get("port");
+                    if (portObj instanceof Number number) {
+                        int port = number.intValue();
+                        queryPortOverride = port > 0 ? port : -1;
+                    }
+
+                    Object timeoutObj = queryMap.get("timeout-ms");
+                    if (timeoutObj instanceof Number number && number.intValue() > 0) {
+                        queryTimeoutMillis = number.intValue();
+                    }
+
+                    Object retryObj = queryMap.get("retry-seconds");
+                    if (retryObj instanceof Number number) {
+                        queryRetryDelayMillis = TimeUnit.SECONDS.toMillis(Math.max(0, number.longValue()));
+                    }
+
+                    Object maxRetryObj = queryMap.get("max-retry-seconds");
+                    if (maxRetryObj instanceof Number number && number.longValue() >= 0) {
+                        queryMaxRetryDelayMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                    }
+
+                    Object retriesObj = queryMap.get("retries");
+                    if (retriesObj instanceof Number number && number.intValue() >= 0) {
+                        queryRetries = number.intValue();
+                    }
+                }
             }
+            return new PlayerSettings(cacheDurationMillis, searchPageSize, backgroundRefresh, refreshIntervalMillis,
+                    maxStaleMillis, pauseWhenEmpty, queryEnabled, queryTargets, queryPortOverride, queryTimeoutMillis,
+                    queryRetries, queryRetryDelayMillis, Math.max(queryMaxRetryDelayMillis, queryRetryDelayMillis));
         }
     }
 
-    private void ensureDefaultEntries(Map<String, Integer> counts, Map<String, Long> times) {
-        if (counts.size() >= maxCommands) {
-            return;
+    /**
+     * Settings of the {@code metrics} section.
+     */
+    private record MetricsSettings(boolean jmx, long fileIntervalSeconds, String fileName) {
+
+        static MetricsSettings parse(Map<String, Object> config) {
+            boolean jmx = true;
+            long fileIntervalSeconds = 60;
+            String fileName = "metrics.txt";
+
+            if (config != null) {
+                Object jmxObj = config.get("jmx");
+                if (jmxObj instanceof Boolean bool) {
+                    jmx = bool;
+                }
+
+                Object fileObj = config.get("file");
+                if (fileObj instanceof Map<?, ?> fileMap) {
+                    Object intervalObj = fileMap.get("interval-seconds");
+                    if (intervalObj instanceof Number number) {
+                        fileIntervalSeconds = Math.max(0, number.longValue());
+                    }
+
+                    Object nameObj = fileMap.get("name");
+                    if (nameObj instanceof String name && !name.isBlank()) {
+                        fileName = name.trim();
+                    }
+                }
+            }
+            return new MetricsSettings(jmx, fileIntervalSeconds, fileName);
         }
+    }
 
-        for (String command : defaultCommands) {
-            if (counts.containsKey(command)) {
-                continue;
+    /**
+     * Settings of the {@code trigger} section.
+     */
+    private record TriggerSettings(long debounceMillis, int maxOpenForms, long formTimeoutMillis) {
+
+        static TriggerSettings parse(Map<String, Object> config) {
+            long debounceMillis = 750;
+            int maxOpenForms = 1;
+            long formTimeoutMillis = TimeUnit.MINUTES.toMillis(2);
+
+            if (config != null) {
+                Object debounceObj = config.get("debounce-ms");
+                if (debounceObj instanceof Number number) {
+                    debounceMillis = Math.max(0, number.longValue());
+                }
+
+                Object maxObj = config.get("max-open-forms");
+                if (maxObj instanceof Number number && number.intValue() > 0) {
+                    maxOpenForms = number.intValue();
+                }
+
+                Object timeoutObj = config.get("form-timeout-seconds");
+                if (timeoutObj instanceof Number number && number.longValue() > 0) {
+                    formTimeoutMillis = TimeUnit.SECONDS.toMillis(number.longValue());
+                }
             }
+            return new TriggerSettings(debounceMillis, maxOpenForms, formTimeoutMillis);
+        }
+    }
 
-            counts.put(command, 0);
-            times.put(command, 0L);
+    /**
+     * Settings of the {@code execution} section.
+     */
+    private record ExecutionSettings(PlayerLanes.Mode mode, int poolSize) {
+
+        static ExecutionSettings parse(Map<String, Object> config, Extension extension) {
+            PlayerLanes.Mode mode = PlayerLanes.Mode.VIRTUAL;
+            int poolSize = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+            if (config != null) {
+                Object modeObj = config.get("mode");
+                if (modeObj instanceof String value) {
+                    try {
+                        mode = PlayerLanes.Mode.valueOf(value.trim().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        extension.logger().warning("Unknown execution mode: " + value + ", defaulting to virtual");
+                    }
+                }
 
-            if (counts.size() >= maxCommands) {
-                break;
+                Object poolObj = config.get("pool-size");
+                if (poolObj instanceof Number number && number.intValue() > 0) {
+                    poolSize = number.intValue();
+                }
             }
+            return new ExecutionSettings(mode, poolSize);
         }
     }
 
-    void shutdown() {
-        saveUsage();
-        executor.shutdown();
+    /**
+     * Query health of one backend, guarded by {@code playerListLock}. A backend starts {@code UNKNOWN},
+     * becomes {@code ENABLED} on an answer and {@code UNAVAILABLE} after a failed query (including
+     * retries), which backs off until {@code nextAttemptMillis}.
+     */
+    private static class QueryTarget {
+        final String host;
+        final int port;
+        QueryState state = QueryState.UNKNOWN;
+        boolean inFlight;
+        boolean failureLogged;
+        int failures;
+        long nextAttemptMillis;
+        List<String> names = Collections.emptyList();
+        long namesTime;
+
+        QueryTarget(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+        }
     }
 
     private static class Menu {
@@ -787,6 +2055,8 @@ public class MenuManager {
         String title;
         String content;
         String command;
+        List<String> commands;
+        long delayMillis;
         List<MenuButton> buttons;
 
         static Menu fromMap(Map<String, Object> map) {
@@ -795,6 +2065,8 @@ public class MenuManager {
             menu.title = (String) map.get("title");
             menu.content = (String) map.get("content");
             menu.command = (String) map.get("command");
+            menu.commands = commands(map);
+            menu.delayMillis = delayMillis(map);
             menu.buttons = new ArrayList<>();
             List<Map<String, Object>> buttons = (List<Map<String, Object>>) map.get("buttons");
             if (buttons != null) {
@@ -803,47 +2075,266 @@ public class MenuManager {
                     b.text = (String) btn.get("text");
                     b.menu = (String) btn.get("menu");
                     b.command = (String) btn.get("command");
+                    b.commands = commands(btn);
+                    b.delayMillis = delayMillis(btn);
                     menu.buttons.add(b);
                 }
             }
             return menu;
         }
+
+        /**
+         * Returns the {@code commands} list, or null if there is none or it is empty.
+         */
+        private static List<String> commands(Map<String, Object> map) {
+            List<?> list = (List<?>) map.get("commands");
+            if (list == null || list.isEmpty()) {
+                return null;
+            }
+            List<String> commands = new ArrayList<>(list.size());
+            for (Object command : list) {
+                if (command != null) {
+                    commands.add(command.toString().replace('\n', ' ').trim());
+                }
+            }
+            return commands;
+        }
+
+        private static long delayMillis(Map<String, Object> map) {
+            Number delay = (Number) map.get("delay-ms");
+            return delay != null ? Math.max(0L, delay.longValue()) : 0L;
+        }
+    }
+
+    /**
+     * Immutable content of a simple menu, built once per configuration load. Opening the menu only
+     * copies the shared button components into a fresh builder and attaches the per-connection handler.
+     */
+    private static final class SimpleFormModel {
+        final String title;
+        final String content;
+        final List<ButtonComponent> buttons;
+        final MenuAction[] actions;
+
+        private SimpleFormModel(String title, String content, List<ButtonComponent> buttons, MenuAction[] actions) {
+            this.title = title;
+            this.content = content;
+            this.buttons = buttons;
+            this.actions = actions;
+        }
+
+        static SimpleFormModel of(Menu menu, MenuAction[] actions) {
+            List<ButtonComponent> components = new ArrayList<>(menu.buttons.size());
+            for (MenuButton button : menu.buttons) {
+                components.add(ButtonComponent.of(button.text));
+            }
+            return new SimpleFormModel(menu.title, menu.content, List.copyOf(components), actions);
+        }
+
+        SimpleForm.Builder builder() {
+            SimpleForm.Builder builder = SimpleForm.builder().title(title);
+            if (content != null) {
+                builder.content(content);
+            }
+            for (ButtonComponent button : buttons) {
+                builder.button(button);
+            }
+            return builder;
+        }
     }
 
     private static class MenuButton {
         String text;
         String menu;
         String command;
+        List<String> commands;
+        long delayMillis;
     }
 
-    private static class CommandTemplate {
+    /**
+     * The commands of a {@code commands} list, run in order by one click. Usage is recorded once per run,
+     * under {@code key}: {@code "macro"} and then each command, every one on a line of its own. A typed
+     * command cannot look like that, because the values a player fills in have their control characters,
+     * line breaks included, replaced with spaces when the command is built; only a configured command that
+     * itself began with {@code "macro"} and a line break could.
+     */
+    private static final class Macro {
+        final String key;
+        final String label;
+        final CommandTemplate[] steps;
+        final long delayMillis;
+
+        Macro(String key, String label, CommandTemplate[] steps, long delayMillis) {
+            this.key = key;
+            this.label = label;
+            this.steps = steps;
+            this.delayMillis = delayMillis;
+        }
+
+        /**
+         * Marks usage keys of macros. Filled-in values never contain a line break, so a player cannot type
+         * a command that starts with it.
+         */
+        private static final String KEY_PREFIX = "macro\n";
+
+        static String key(List<String> commands) {
+            return KEY_PREFIX + String.join("\n", commands);
+        }
+
+        static boolean isKey(String command) {
+            return command.startsWith(KEY_PREFIX);
+        }
+
+        static String[] commands(String key) {
+            return key.substring(KEY_PREFIX.length()).split("\n");
+        }
+    }
+
+    private enum MenuType {
+        SIMPLE,
+        CUSTOM,
+        /** The per-player menu of most used commands, selected by the menu id {@code common}. */
+        COMMON;
+
+        static MenuType of(String type) {
+            if ("simple".equalsIgnoreCase(type)) {
+                return SIMPLE;
+            }
+            if ("custom".equalsIgnoreCase(type)) {
+                return CUSTOM;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * What clicking a button does, resolved once per configuration load.
+     */
+    @FunctionalInterface
+    private interface MenuAction {
+        MenuAction NONE = (manager, connection) -> { };
+
+        void run(MenuManager manager, GeyserConnection connection);
+    }
+
+    /**
+     * A menu compiled from its configuration. Buttons hold direct references to their target nodes, so a
+     * click is an array index plus a call and never looks up ids or compares strings. The fields are only
+     * written while the configuration is built, before it is published.
+     */
+    private static final class MenuNode {
+        final String id;
+        final MenuType type;
+        final String title;
+        final List<MenuNode> links = new ArrayList<>();
+        final LongAdder opened;
+        SimpleFormModel form;
+        MenuAction action;
+
+        MenuNode(String id, MenuType type, String title, LongAdder opened) {
+            this.id = id;
+            this.type = type;
+            this.title = title;
+            this.opened = opened;
+        }
+    }
+
+    /**
+     * A command compiled into alternating literal segments and argument slots. {@code literals} always
+     * holds one more element than {@code arguments}: the text before, between and after each slot.
+     */
+    static class CommandTemplate {
         private static final Pattern ARG_PATTERN = Pattern.compile("\\{[^}]+}");
 
         final String raw;
-        final List<Argument> arguments;
+        final String label;
+        final Argument[] arguments;
+        private final String[] literals;
+        private final String[] placeholders;
+        private final int literalLength;
 
-        private CommandTemplate(String raw, List<Argument> arguments) {
+        private CommandTemplate(String raw, String[] literals, Argument[] arguments, String[] placeholders) {
             this.raw = raw;
+            this.literals = literals;
             this.arguments = arguments;
+            this.placeholders = placeholders;
+            int length = 0;
+            for (String literal : literals) {
+                length += literal.length();
+            }
+            this.literalLength = length;
+            this.label = buildLabel(literals);
         }
 
         static CommandTemplate parse(String input, Extension extension) {
             Matcher matcher = ARG_PATTERN.matcher(input);
+            List<String> literals = new ArrayList<>();
             List<Argument> args = new ArrayList<>();
+            List<String> placeholders = new ArrayList<>();
+            int last = 0;
             while (matcher.find()) {
+                literals.add(input.substring(last, matcher.start()));
                 String inside = matcher.group();
+                placeholders.add(inside);
                 inside = inside.substring(1, inside.length() - 1);
                 args.add(Argument.parse(inside, extension));
+                last = matcher.end();
             }
-            return new CommandTemplate(input, args);
+            literals.add(input.substring(last));
+            return new CommandTemplate(input, literals.toArray(new String[0]), args.toArray(new Argument[0]),
+                    placeholders.toArray(new String[0]));
         }
 
+        /**
+         * Fills the argument slots in order. Values are inserted verbatim except that control characters,
+         * line breaks included, become spaces; slots without a value keep their original placeholder
+         * text.
+         */
         String build(List<String> values) {
-            String result = raw;
-            for (String value : values) {
-                result = result.replaceFirst("\\{[^}]+}", value);
+            if (arguments.length == 0) {
+                return raw;
+            }
+            int capacity = literalLength;
+            for (int i = 0; i < arguments.length; i++) {
+                capacity += i < values.size() ? values.get(i).length() : placeholders[i].length();
+            }
+            StringBuilder builder = new StringBuilder(capacity);
+            builder.append(literals[0]);
+            for (int i = 0; i < arguments.length; i++) {
+                if (i < values.size()) {
+                    appendValue(builder, values.get(i));
+                } else {
+                    builder.append(placeholders[i]);
+                }
+                builder.append(literals[i + 1]);
             }
-            return result;
+            return builder.toString();
+        }
+
+        private static void appendValue(StringBuilder builder, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                builder.append(Character.isISOControl(c) ? ' ' : c);
+            }
+        }
+
+        /**
+         * Joins the literal segments with single spaces, matching how buttons display a template.
+         */
+        private static String buildLabel(String[] literals) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < literals.length; i++) {
+                String literal = literals[i];
+                if (i > 0) {
+                    builder.append(' ');
+                    literal = literal.stripLeading();
+                }
+                if (i < literals.length - 1) {
+                    literal = literal.stripTrailing();
+                }
+                builder.append(literal);
+            }
+            return builder.toString().trim();
         }
     }
 
@@ -851,12 +2342,27 @@ public class MenuManager {
         INPUT,
         DROPDOWN,
         PLAYER_LIST,
+        PLAYER_SEARCH,
         TOGGLE,
         SLIDER,
-        STEP_SLIDER
+        STEP_SLIDER;
+
+        /**
+         * Matches a type name case-insensitively, with or without underscores, so {@code PlayerList} and
+         * {@code PLAYER_LIST} both work.
+         */
+        static ArgType parse(String name) {
+            String wanted = name.replace("_", "");
+            for (ArgType type : values()) {
+                if (type.name().replace("_", "").equalsIgnoreCase(wanted)) {
+                    return type;
+                }
+            }
+            return null;
+        }
     }
 
-    private static class Argument {
+    static class Argument {
         String label;
         ArgType type;
         List<String> options = Collections.emptyList();
@@ -868,10 +2374,9 @@ public class MenuManager {
             List<String> parts = split(content);
             Argument arg = new Argument();
             arg.label = strip(parts.get(0));
-            String typeStr = parts.size() > 1 ? parts.get(1).trim().toUpperCase() : "INPUT";
-            try {
-                arg.type = ArgType.valueOf(typeStr);
-            } catch (IllegalArgumentException e) {
+            String typeStr = parts.size() > 1 ? parts.get(1).trim() : "Input";
+            arg.type = ArgType.parse(typeStr);
+            if (arg.type == null) {
                 if (extension != null) {
                     extension.logger().warning("Unknown argument type: " + typeStr + ", defaulting to INPUT");
                 }
@@ -0,0 +1,230 @@
+package org.geyser.extension.bmenus;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, histograms and gauges describing what BMenus is doing.
+ * <p>
+ * Recording never locks: counters are {@link LongAdder}s and histograms are arrays of them, one per
+ * power-of-two bucket, so concurrent updates from many player threads land on separate cells. Callers
+ * look a metric up once and keep the reference; only reading a snapshot walks the registry. Snapshots
+ * are exposed as attributes of a JMX bean and written to a local file.
+ */
+final class Metrics implements DynamicMBean {
+
+    static final String OBJECT_NAME = "org.geyser.extension.bmenus:type=Metrics";
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private ObjectName registered;
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     */
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use. The name should carry the
+     * unit of the recorded values, for example {@code .us} or {@code .bytes}.
+     */
+    Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers a value that is read when a snapshot is taken.
+     */
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Returns every metric by name. Histograms contribute {@code count}, {@code mean}, {@code p50},
+     * {@code p95}, {@code p99} and {@code max} entries.
+     */
+    SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> histogram.snapshot(name, values));
+        return values;
+    }
+
+    /**
+     * Writes the snapshot as {@code name value} lines to a temporary file and moves it over {@code path},
+     * so readers never see a partial file.
+     */
+    void writeTo(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp)) {
+            writer.write("# BMenus metrics, " + new Date() + System.lineSeparator());
+            for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + System.lineSeparator());
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Registers this registry with the platform MBean server, replacing a bean left behind by an earlier
+     * instance of the extension.
+     */
+    synchronized void registerMBean() throws JMException {
+        if (registered != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        registered = name;
+    }
+
+    synchronized void unregisterMBean() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException ignored) {
+            // already gone
+        }
+        registered = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("BMenus metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * Describes the metrics that exist right now; menus added by a reload appear on the next call.
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        SortedMap<String, Long> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "BMenus metrics", attributes, null, null, null);
+    }
+
+    /**
+     * A lock-free histogram of non-negative values. Bucket {@code i} counts values whose highest set bit is
+     * bit {@code i - 1}, so percentiles are reported as the upper bound of their bucket, at most twice the
+     * true value.
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a {@link System#nanoTime()} reading, in microseconds.
+         */
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000L);
+        }
+
+        private void snapshot(String name, Map<String, Long> values) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long highest = max.get();
+            values.put(name + ".count", total);
+            values.put(name + ".mean", total == 0 ? 0L : sum.sum() / total);
+            values.put(name + ".p50", percentile(counts, total, 0.50, highest));
+            values.put(name + ".p95", percentile(counts, total, 0.95, highest));
+            values.put(name + ".p99", percentile(counts, total, 0.99, highest));
+            values.put(name + ".max", highest);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction, long highest) {
+            if (total == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0L : (1L << i) - 1;
+                    return Math.min(upper, highest);
+                }
+            }
+            return highest;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.geyser.extension.bmenus;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs form responses and menu opens off the thread that delivered them, one lane per player.
+ * <p>
+ * Tasks of the same player run one at a time in submission order; different players run in parallel on
+ * the worker executor. Submitting only appends to the player's queue and, if the lane is idle, hands the
+ * lane to the workers, so Geyser's network threads never run menu logic. A lane holds at most one
+ * worker slot however many tasks it has queued. A player has at most one lane: the lane of a player who
+ * disconnected is only dropped once it is idle, and tasks are queued under the same map lock that
+ * drops it.
+ * <p>
+ * Workers are virtual threads when the runtime supports them (Java 21 and newer), otherwise a fixed pool
+ * of daemon threads. In {@link Mode#DIRECT} mode tasks run on the calling thread, as before.
+ */
+final class PlayerLanes {
+
+    enum Mode {
+        VIRTUAL,
+        POOL,
+        DIRECT
+    }
+
+    private final Map<UUID, Lane> lanes = new ConcurrentHashMap<>();
+    private final Thread.UncaughtExceptionHandler errors;
+    private volatile Mode mode = Mode.DIRECT;
+    private volatile ExecutorService workers;
+
+    /**
+     * @param errors receives exceptions thrown by tasks; the lane keeps running
+     */
+    PlayerLanes(Thread.UncaughtExceptionHandler errors) {
+        this.errors = errors;
+    }
+
+    /**
+     * Switches the worker executor. Lanes that are running finish on the previous executor, which is shut
+     * down once its work is done.
+     *
+     * @return the mode in effect, which is {@link Mode#POOL} if virtual threads were requested but are not
+     *         available
+     */
+    synchronized Mode configure(Mode requested, int poolSize) {
+        ExecutorService next = null;
+        Mode effective = requested;
+        if (requested == Mode.VIRTUAL) {
+            next = virtualThreadExecutor();
+            if (next == null) {
+                effective = Mode.POOL;
+            }
+        }
+        if (effective == Mode.POOL) {
+            next = Executors.newFixedThreadPool(poolSize, new WorkerFactory());
+        }
+        ExecutorService previous = workers;
+        workers = next;
+        mode = effective;
+        if (previous != null) {
+            previous.shutdown();
+        }
+        return effective;
+    }
+
+    /**
+     * Queues a task on the player's lane.
+     */
+    void execute(UUID uuid, Runnable task) {
+        if (mode == Mode.DIRECT) {
+            run(task);
+            return;
+        }
+        Lane lane = lanes.compute(uuid, (id, current) -> {
+            Lane target = current != null ? current : new Lane();
+            target.tasks.add(task);
+            return target;
+        });
+        if (lane.compareAndSet(false, true)) {
+            schedule(uuid, lane);
+        }
+    }
+
+    /**
+     * Forgets the lane of a player who disconnected, right away if it is idle, otherwise once its queued
+     * tasks have run.
+     */
+    void remove(UUID uuid) {
+        Lane lane = lanes.get(uuid);
+        if (lane != null) {
+            lane.released = true;
+            removeIfIdle(uuid, lane);
+        }
+    }
+
+    private void removeIfIdle(UUID uuid, Lane lane) {
+        lanes.computeIfPresent(uuid, (id, current) ->
+                current == lane && lane.released && !lane.get() && lane.tasks.isEmpty() ? null : current);
+    }
+
+    int size() {
+        return lanes.size();
+    }
+
+    /**
+     * Stops the workers, waiting up to {@code timeout} for queued tasks to finish.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        ExecutorService current;
+        synchronized (this) {
+            current = workers;
+            workers = null;
+            mode = Mode.DIRECT;
+        }
+        lanes.clear();
+        if (current != null) {
+            current.shutdown();
+            current.awaitTermination(timeout, unit);
+        }
+    }
+
+    private void schedule(UUID uuid, Lane lane) {
+        while (true) {
+            ExecutorService current = workers;
+            if (current == null) {
+                // shut down or switched to direct mode while the task was queued
+                drain(uuid, lane);
+                return;
+            }
+            try {
+                current.execute(() -> drain(uuid, lane));
+                return;
+            } catch (RejectedExecutionException e) {
+                if (current == workers) {
+                    drain(uuid, lane);
+                    return;
+                }
+                // the executor was replaced between reading and submitting; use the new one
+            }
+        }
+    }
+
+    private void drain(UUID uuid, Lane lane) {
+        while (true) {
+            Runnable task;
+            while ((task = lane.tasks.poll()) != null) {
+                run(task);
+            }
+            lane.set(false);
+            // a task added after the last poll but before the flag was cleared would otherwise wait
+            if (lane.tasks.isEmpty() || !lane.compareAndSet(false, true)) {
+                if (lane.released) {
+                    removeIfIdle(uuid, lane);
+                }
+                return;
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            errors.uncaughtException(Thread.currentThread(), e);
+        }
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The pending tasks of one player. The flag is set while the lane is queued on or running in a worker;
+     * {@code released} once the player disconnected.
+     */
+    private static final class Lane extends AtomicBoolean {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        volatile boolean released;
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BMenus-Worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
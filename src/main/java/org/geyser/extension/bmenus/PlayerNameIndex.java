@@ -0,0 +1,222 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.connection.GeyserConnection;
+
+import java.util.*;
+
+/**
+ * Sorted, immutable snapshots of the player names offered by {@code PLAYER_LIST} and {@code PLAYER_SEARCH}
+ * arguments.
+ * <p>
+ * Bedrock names are maintained incrementally from session login and disconnect events; remote Java
+ * names are replaced whenever a query completes. Every change publishes a new merged snapshot, so readers
+ * share one unmodifiable list and never copy, sort or lock. Each snapshot carries its own search index
+ * for {@code PLAYER_SEARCH} arguments.
+ */
+final class PlayerNameIndex {
+
+    /** Case-insensitive order, with a case-sensitive tie break so only identical names collapse. */
+    static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final Map<UUID, String> sessions = new HashMap<>();
+    private String[] local = new String[0];
+    private String[] remote = new String[0];
+    private volatile Snapshot localView = Snapshot.EMPTY;
+    private volatile Snapshot merged = Snapshot.EMPTY;
+
+    /**
+     * Returns Bedrock and remote names merged, without duplicates.
+     */
+    Snapshot names() {
+        return merged;
+    }
+
+    /**
+     * Returns only the names of Bedrock players connected to this proxy.
+     */
+    Snapshot localNames() {
+        return localView;
+    }
+
+    synchronized int localCount() {
+        return sessions.size();
+    }
+
+    synchronized void add(UUID uuid, String name) {
+        String previous = sessions.put(uuid, name);
+        if (name.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            removeLocal(previous);
+        }
+        int position = Arrays.binarySearch(local, name, ORDER);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        // names may repeat across sessions; keep one entry per session so removal stays symmetric
+        String[] next = new String[local.length + 1];
+        System.arraycopy(local, 0, next, 0, position);
+        next[position] = name;
+        System.arraycopy(local, position, next, position + 1, local.length - position);
+        local = next;
+        publish();
+    }
+
+    synchronized void remove(UUID uuid) {
+        String name = sessions.remove(uuid);
+        if (name != null) {
+            removeLocal(name);
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the Bedrock names with the given connections, for example after a reload.
+     */
+    synchronized void reset(Collection<? extends GeyserConnection> connections) {
+        sessions.clear();
+        List<String> names = new ArrayList<>(connections.size());
+        for (GeyserConnection connection : connections) {
+            sessions.put(connection.playerUuid(), connection.name());
+            names.add(connection.name());
+        }
+        local = names.toArray(new String[0]);
+        Arrays.sort(local, ORDER);
+        publish();
+    }
+
+    /**
+     * Replaces the names reported by remote queries.
+     */
+    synchronized void remote(List<String> names) {
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted, ORDER);
+        remote = sorted;
+        publish();
+    }
+
+    private void removeLocal(String name) {
+        int position = Arrays.binarySearch(local, name, ORDER);
+        if (position < 0) {
+            return;
+        }
+        String[] next = new String[local.length - 1];
+        System.arraycopy(local, 0, next, 0, position);
+        System.arraycopy(local, position + 1, next, position, local.length - position - 1);
+        local = next;
+    }
+
+    private void publish() {
+        String[] names = new String[local.length + remote.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < local.length || j < remote.length) {
+            String next;
+            if (j == remote.length || (i < local.length && ORDER.compare(local[i], remote[j]) <= 0)) {
+                next = local[i++];
+            } else {
+                next = remote[j++];
+            }
+            if (size == 0 || !names[size - 1].equals(next)) {
+                names[size++] = next;
+            }
+        }
+        localView = new Snapshot(dedupe(local));
+        merged = new Snapshot(Arrays.copyOf(names, size));
+    }
+
+    private static String[] dedupe(String[] sorted) {
+        String[] names = new String[sorted.length];
+        int size = 0;
+        for (String name : sorted) {
+            if (size == 0 || !names[size - 1].equals(name)) {
+                names[size++] = name;
+            }
+        }
+        return size == names.length ? names : Arrays.copyOf(names, size);
+    }
+
+    /**
+     * An immutable name list and a search index over it: lower-cased names sorted by {@code char} value,
+     * so every prefix maps to one contiguous range found by binary search.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new String[0]);
+
+        private final List<String> list;
+        private final String[] keys;
+        private final String[] byKey;
+
+        private Snapshot(String[] sorted) {
+            this.list = Collections.unmodifiableList(Arrays.asList(sorted));
+            String[][] entries = new String[sorted.length][];
+            for (int i = 0; i < sorted.length; i++) {
+                entries[i] = new String[]{sorted[i].toLowerCase(Locale.ROOT), sorted[i]};
+            }
+            Arrays.sort(entries, Comparator.comparing(entry -> entry[0]));
+            this.keys = new String[entries.length];
+            this.byKey = new String[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                keys[i] = entries[i][0];
+                byKey[i] = entries[i][1];
+            }
+        }
+
+        /**
+         * Returns all names in display order.
+         */
+        List<String> list() {
+            return list;
+        }
+
+        /**
+         * Returns the only name equal to {@code query} ignoring case, or {@code null} if there is none or
+         * several names differ only in case.
+         */
+        String exact(String query) {
+            String key = query.trim().toLowerCase(Locale.ROOT);
+            int from = lowerBound(key);
+            if (from < keys.length && keys[from].equals(key)
+                    && (from + 1 == keys.length || !keys[from + 1].equals(key))) {
+                return byKey[from];
+            }
+            return null;
+        }
+
+        /**
+         * Returns names starting with {@code query}, then names containing it elsewhere, ignoring case.
+         * A blank query matches every name.
+         */
+        List<String> match(String query) {
+            String key = query.trim().toLowerCase(Locale.ROOT);
+            if (key.isEmpty()) {
+                return list;
+            }
+            int from = lowerBound(key);
+            int to = lowerBound(key + Character.MAX_VALUE);
+            List<String> result = new ArrayList<>(Arrays.asList(byKey).subList(from, to));
+            for (int i = 0; i < keys.length; i++) {
+                if ((i < from || i >= to) && keys[i].contains(key)) {
+                    result.add(byKey[i]);
+                }
+            }
+            return result;
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package org.geyser.extension.bmenus;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Command usage history of a single player.
+ * <p>
+ * Every method synchronizes on the record itself, so updates for different players never contend
+ * and readers always observe a consistent view of one player's counts and timestamps.
+ * <p>
+ * Commands are stored as {@link CommandDictionary} ids in four parallel primitive arrays kept in rank
+ * order. Entries are re-positioned as they change, so reading the top commands never sorts and trimming
+ * to {@code max-commands} only drops entries from the tail.
+ * <p>
+ * Besides the raw count, every entry carries a frecency score: each use adds one, and the total halves
+ * every {@code half-life-seconds}. Only the score as of the last use is stored; decay is applied lazily
+ * from that timestamp. Because every score decays at the same rate, comparing {@code ln(score) + lambda * last}
+ * ranks entries by their current score, and that order never changes as time passes. Both values are
+ * always maintained, so the ranking mode can be switched without losing history.
+ * <p>
+ * Entries past {@code expiry-seconds} are removed by the background sweeper through {@link #sweep}, never
+ * while a player is waiting for a form.
+ */
+final class PlayerUsage {
+
+    private static final int[] EMPTY_IDS = new int[0];
+    private static final long[] EMPTY_TIMES = new long[0];
+    private static final float[] EMPTY_SCORES = new float[0];
+    private static final AtomicLongFieldUpdater<PlayerUsage> SWEEP_AT =
+            AtomicLongFieldUpdater.newUpdater(PlayerUsage.class, "sweepAt");
+
+    private int[] ids = EMPTY_IDS;
+    private int[] counts = EMPTY_IDS;
+    private long[] lasts = EMPTY_TIMES;
+    private float[] scores = EMPTY_SCORES;
+    private int size;
+    private Settings orderedFor;
+    private volatile long nextExpiryCheck;
+    private volatile long sweepAt = Long.MAX_VALUE;
+    private boolean defaultsComplete;
+
+    private boolean evicted;
+    private long sequence;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile long releasedAt;
+
+    /**
+     * Creates a record seeded with the configured default commands.
+     */
+    static PlayerUsage withDefaults(Settings settings) {
+        PlayerUsage usage = new PlayerUsage();
+        usage.ensureCapacity(settings.defaultIds.length, settings.maxCommands + 1);
+        for (int id : settings.defaultIds) {
+            usage.append(id, 0, 0L, 0f);
+        }
+        return usage;
+    }
+
+    /**
+     * Stores a loaded entry without running any cleanup. The record is re-ranked on next access.
+     */
+    synchronized void put(int id, int count, long last, float score) {
+        int position = find(id);
+        if (position < 0) {
+            ensureCapacity(size + 1, size + 1);
+            append(id, count, last, score);
+        } else {
+            counts[position] = count;
+            lasts[position] = last;
+            scores[position] = score;
+        }
+        orderedFor = null;
+        nextExpiryCheck = 0L;
+        defaultsComplete = false;
+    }
+
+    /**
+     * Counts one use of a command. A new command displaces one unused default entry.
+     *
+     * @param journal writes the increment to the usage journal while the record is locked, or
+     *                {@code null} when replaying increments that are already journaled
+     * @return {@code false} if the record was evicted concurrently and the caller must load it again
+     */
+    synchronized boolean record(int id, long now, Settings settings, JournalWriter journal) {
+        if (evicted) {
+            return false;
+        }
+        if (journal != null) {
+            sequence = Math.max(sequence, journal.append());
+        }
+        lastAccess = now;
+        ensureOrdered(settings);
+        int position = find(id);
+        int previous = position < 0 ? 0 : counts[position];
+        if (position < 0) {
+            ensureCapacity(size + 1, settings.maxCommands + 1);
+            position = append(id, 0, now, 0f);
+        }
+        counts[position]++;
+        scores[position] = settings.addUse(scores[position], lasts[position], now);
+        lasts[position] = Math.max(lasts[position], now);
+        moveUp(position, settings);
+        nextExpiryCheck = Math.min(nextExpiryCheck, now + settings.expiryMillis + 1);
+
+        if (previous == 0 && settings.defaultRank(id) < 0) {
+            for (int def : settings.defaultIds) {
+                int unused = find(def);
+                if (unused >= 0 && counts[unused] == 0) {
+                    remove(unused);
+                    break;
+                }
+            }
+        }
+        cleanup(now, settings);
+        return true;
+    }
+
+    /**
+     * Returns the command ids of up to {@code limit} entries in rank order.
+     */
+    synchronized int[] top(int limit, long now, Settings settings) {
+        lastAccess = now;
+        ensureOrdered(settings);
+        cleanup(now, settings);
+        return Arrays.copyOf(ids, Math.min(limit, size));
+    }
+
+    /**
+     * Visits every entry in rank order while holding the record's lock.
+     */
+    synchronized void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(ids[i], counts[i], lasts[i], scores[i]);
+        }
+    }
+
+    /**
+     * Returns when the oldest entry can next expire, {@code 0} if that is unknown, or
+     * {@code Long.MAX_VALUE} if nothing can.
+     */
+    long nextExpiry() {
+        return nextExpiryCheck;
+    }
+
+    /**
+     * Drops expired entries for the background sweeper and returns when to look again. Evicted records
+     * are left alone; they are no longer used and never need another sweep.
+     */
+    synchronized long sweep(long now, Settings settings) {
+        if (evicted) {
+            return Long.MAX_VALUE;
+        }
+        ensureOrdered(settings);
+        if (settings.ranking == Ranking.FRECENCY) {
+            dropFaded(now, settings);
+            nextExpiryCheck = Long.MAX_VALUE;
+        } else if (now >= nextExpiryCheck) {
+            expire(now, settings);
+        }
+        ensureDefaultEntries(settings);
+        return nextExpiryCheck;
+    }
+
+    /**
+     * Lowers the time the record is queued for in the {@link ExpiryQueue}.
+     *
+     * @return {@code true} if it was lowered and the record has to be queued for {@code time}
+     */
+    boolean sweepBy(long time) {
+        while (true) {
+            long current = sweepAt;
+            if (current <= time) {
+                return false;
+            }
+            if (SWEEP_AT.compareAndSet(this, current, time)) {
+                return true;
+            }
+        }
+    }
+
+    long sweepAt() {
+        return sweepAt;
+    }
+
+    /**
+     * Takes the record out of the queue before it is swept, unless it was queued for an earlier time
+     * meanwhile.
+     */
+    boolean claimSweep(long time) {
+        return SWEEP_AT.compareAndSet(this, time, Long.MAX_VALUE);
+    }
+
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    long releasedAt() {
+        return releasedAt;
+    }
+
+    /**
+     * Marks the owning player as connected ({@code 0}) or disconnected since {@code time}.
+     */
+    void released(long time) {
+        releasedAt = time;
+    }
+
+    /**
+     * Marks the record as evicted if its latest increment has been persisted by the usage store. Later
+     * updates are then rejected so they are applied to a freshly loaded record instead.
+     */
+    synchronized boolean tryEvict(long persisted) {
+        if (sequence > persisted) {
+            return false;
+        }
+        evicted = true;
+        return true;
+    }
+
+    /**
+     * Keeps the record within {@code max-commands} and seeded with defaults. Faded frecency entries sit
+     * at the tail and are dropped here cheaply; expiry by age is left to {@link #sweep}.
+     */
+    private void cleanup(long now, Settings settings) {
+        if (settings.ranking == Ranking.FRECENCY) {
+            dropFaded(now, settings);
+        }
+        while (size > settings.maxCommands) {
+            remove(size - 1);
+        }
+        ensureDefaultEntries(settings);
+    }
+
+    /**
+     * Drops expired entries. The oldest remaining timestamp bounds when the next sweep can find
+     * anything, so the record is not queued again before that point.
+     */
+    private void expire(long now, Settings settings) {
+        long oldest = Long.MAX_VALUE;
+        for (int i = size - 1; i >= 0; i--) {
+            if (counts[i] == 0 && settings.defaultRank(ids[i]) >= 0) {
+                continue;
+            }
+            if (now - lasts[i] > settings.expiryMillis) {
+                remove(i);
+            } else if (lasts[i] < oldest) {
+                oldest = lasts[i];
+            }
+        }
+        nextExpiryCheck = oldest == Long.MAX_VALUE ? Long.MAX_VALUE : oldest + settings.expiryMillis + 1;
+    }
+
+    /**
+     * Drops entries whose score has decayed below {@code min-score}. Decay never changes the order, so
+     * faded entries are always at the tail, behind only the unused defaults, and the scan stops at the
+     * first entry that is still relevant.
+     */
+    private void dropFaded(long now, Settings settings) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (counts[i] == 0 && settings.defaultRank(ids[i]) >= 0) {
+                continue;
+            }
+            if (settings.decayed(scores[i], lasts[i], now) >= settings.minScore) {
+                return;
+            }
+            remove(i);
+        }
+    }
+
+    /**
+     * Re-adds defaults that are missing while there is room. Runs only after entries were removed or
+     * the settings changed, so the click path normally skips it.
+     */
+    private void ensureDefaultEntries(Settings settings) {
+        if (defaultsComplete) {
+            return;
+        }
+        defaultsComplete = true;
+        if (size >= settings.maxCommands) {
+            return;
+        }
+
+        for (int id : settings.defaultIds) {
+            if (find(id) >= 0) {
+                continue;
+            }
+
+            ensureCapacity(size + 1, settings.maxCommands + 1);
+            moveUp(append(id, 0, 0L, 0f), settings);
+
+            if (size >= settings.maxCommands) {
+                break;
+            }
+        }
+    }
+
+    private void ensureOrdered(Settings settings) {
+        if (orderedFor == settings) {
+            return;
+        }
+        // insertion sort: records are small and usually already close to ordered
+        for (int i = 1; i < size; i++) {
+            moveUp(i, settings);
+        }
+        orderedFor = settings;
+        nextExpiryCheck = 0L;
+        defaultsComplete = false;
+    }
+
+    private int find(int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int needed, int preferred) {
+        if (needed <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(needed, Math.max(preferred, ids.length * 2));
+        ids = Arrays.copyOf(ids, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        scores = Arrays.copyOf(scores, capacity);
+    }
+
+    private int append(int id, int count, long last, float score) {
+        ids[size] = id;
+        counts[size] = count;
+        lasts[size] = last;
+        scores[size] = score;
+        return size++;
+    }
+
+    private void remove(int position) {
+        int moved = size - position - 1;
+        System.arraycopy(ids, position + 1, ids, position, moved);
+        System.arraycopy(counts, position + 1, counts, position, moved);
+        System.arraycopy(lasts, position + 1, lasts, position, moved);
+        System.arraycopy(scores, position + 1, scores, position, moved);
+        size--;
+        defaultsComplete = false;
+    }
+
+    private void moveUp(int position, Settings settings) {
+        int id = ids[position];
+        int count = counts[position];
+        long last = lasts[position];
+        float score = scores[position];
+        while (position > 0 && compare(id, count, last, score, position - 1, settings) < 0) {
+            ids[position] = ids[position - 1];
+            counts[position] = counts[position - 1];
+            lasts[position] = lasts[position - 1];
+            scores[position] = scores[position - 1];
+            position--;
+        }
+        ids[position] = id;
+        counts[position] = count;
+        lasts[position] = last;
+        scores[position] = score;
+    }
+
+    /**
+     * Orders entries by descending count or current score, then most recent use. Unused defaults keep
+     * their configured order and rank ahead of other commands with the same count and time.
+     */
+    private int compare(int id, int count, long last, float score, int other, Settings settings) {
+        int primary = settings.ranking == Ranking.FRECENCY
+                ? Double.compare(settings.rank(scores[other], lasts[other]), settings.rank(score, last))
+                : Integer.compare(counts[other], count);
+        if (primary != 0) {
+            return primary;
+        }
+        int timeCompare = Long.compare(lasts[other], last);
+        if (timeCompare != 0) {
+            return timeCompare;
+        }
+        int aDefault = settings.defaultRank(id);
+        int bDefault = settings.defaultRank(ids[other]);
+        if (aDefault != bDefault) {
+            if (aDefault < 0 || bDefault < 0) {
+                return aDefault < 0 ? 1 : -1;
+            }
+            return Integer.compare(aDefault, bDefault);
+        }
+        return settings.dictionary.command(id).compareTo(settings.dictionary.command(ids[other]));
+    }
+
+    @FunctionalInterface
+    interface JournalWriter {
+        /**
+         * Hands the increment to the {@link UsageStore} and returns its sequence number.
+         */
+        long append();
+    }
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        void visit(int id, int count, long last, float score);
+    }
+
+    enum Ranking {
+        /** Most used first, as counted over the whole history. */
+        COUNT,
+        /** Highest decayed score first; recent uses weigh more than old ones. */
+        FRECENCY
+    }
+
+    /**
+     * Usage limits taken from the configuration. Instances are immutable and replaced on reload.
+     */
+    static final class Settings {
+        final CommandDictionary dictionary;
+        final int[] defaultIds;
+        final int maxCommands;
+        final long expiryMillis;
+        final Ranking ranking;
+        final float minScore;
+        /** Decay rate per millisecond, ln 2 divided by the half-life. */
+        private final double lambda;
+        /** Indexed by command id: the position in {@code defaults.common} plus one, or 0. */
+        private final int[] defaultRanks;
+
+        Settings(CommandDictionary dictionary, List<String> defaultCommands, int maxCommands, long expiryMillis) {
+            this(dictionary, defaultCommands, maxCommands, expiryMillis, Ranking.COUNT, TimeUnit.DAYS.toMillis(3), 0.05f);
+        }
+
+        Settings(CommandDictionary dictionary, List<String> defaultCommands, int maxCommands, long expiryMillis,
+                 Ranking ranking, long halfLifeMillis, float minScore) {
+            this.dictionary = dictionary;
+            this.defaultIds = new int[defaultCommands.size()];
+            int highest = -1;
+            for (int i = 0; i < defaultIds.length; i++) {
+                defaultIds[i] = dictionary.intern(defaultCommands.get(i));
+                highest = Math.max(highest, defaultIds[i]);
+            }
+            this.defaultRanks = new int[highest + 1];
+            for (int i = defaultIds.length - 1; i >= 0; i--) {
+                defaultRanks[defaultIds[i]] = i + 1;
+            }
+            this.maxCommands = maxCommands;
+            this.expiryMillis = expiryMillis;
+            this.ranking = ranking;
+            this.minScore = minScore;
+            this.lambda = Math.log(2) / halfLifeMillis;
+        }
+
+        /**
+         * Returns the score after one more use at {@code now}, given the score as of {@code last}. A use
+         * older than {@code last}, as when replaying the journal out of order, is decayed to {@code last}
+         * instead, so the result does not depend on the order of uses.
+         */
+        float addUse(float score, long last, long now) {
+            if (now >= last) {
+                return (float) (score * Math.exp(-lambda * (now - last)) + 1.0);
+            }
+            return (float) (score + Math.exp(-lambda * (last - now)));
+        }
+
+        /**
+         * Returns the decay rate per millisecond, for stores that apply it in SQL.
+         */
+        double decayRate() {
+            return lambda;
+        }
+
+        /**
+         * Returns the score at {@code now} of an entry whose score was {@code score} at {@code last}.
+         */
+        double decayed(float score, long last, long now) {
+            return score * Math.exp(-lambda * Math.max(0L, now - last));
+        }
+
+        /**
+         * Returns a value that orders entries like their current scores, whatever the current time.
+         */
+        double rank(float score, long last) {
+            return score > 0f ? Math.log(score) + lambda * last : Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Returns the position of a command in {@code defaults.common}, or -1.
+         */
+        int defaultRank(int id) {
+            return id < defaultRanks.length ? defaultRanks[id] - 1 : -1;
+        }
+    }
+}
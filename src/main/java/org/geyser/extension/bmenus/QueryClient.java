@@ -0,0 +1,365 @@
+package org.geyser.extension.bmenus;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous GS4 (Minecraft query protocol) client.
+ * <p>
+ * All queries share one long-lived {@link DatagramChannel}. Requests are sent from the calling thread and
+ * a single daemon thread receives every response and completes the matching future by session id, so no
+ * caller ever waits on the network. Resolved addresses and challenge tokens are cached per target: a
+ * refresh inside the token lifetime costs one stat round trip instead of a handshake plus a stat.
+ * <p>
+ * Host names are resolved on a thread of their own per target, and a query waits for its lookup no
+ * longer than its timeout, so a hanging DNS server delays neither other targets nor the caller's
+ * in-flight bookkeeping. A lookup that is still running is shared by later queries of the same target.
+ */
+final class QueryClient {
+
+    /** Vanilla servers rotate challenge tokens every 30 seconds. */
+    private static final long TOKEN_LIFETIME_MILLIS = TimeUnit.SECONDS.toMillis(25);
+    private static final long ADDRESS_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final byte TYPE_HANDSHAKE = 0x09;
+    private static final byte TYPE_STAT = 0x00;
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final ExecutorService resolver = Executors.newCachedThreadPool(daemon("BMenus-QueryResolver"));
+    private final AddressResolver addressResolver;
+    private DatagramChannel channel;
+    private Thread receiver;
+    private boolean closed;
+
+    QueryClient() {
+        this(InetAddress::getByName);
+    }
+
+    QueryClient(AddressResolver addressResolver) {
+        this.addressResolver = addressResolver;
+    }
+
+    /**
+     * Requests the player names of a server.
+     *
+     * @return a future completed by the receiver thread, or exceptionally on timeout or protocol errors
+     */
+    CompletableFuture<List<String>> query(String host, int port, int timeoutMillis) {
+        Target target = targets.computeIfAbsent(host + ":" + port, key -> new Target(host, port));
+        long now = System.currentTimeMillis();
+
+        CompletableFuture<InetSocketAddress> address;
+        InetSocketAddress cached = target.address(now);
+        if (cached != null) {
+            address = CompletableFuture.completedFuture(cached);
+        } else {
+            // a copy, so timing out this query leaves the shared lookup running for the next one
+            address = target.resolve(addressResolver, resolver).copy()
+                    .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        CompletableFuture<List<String>> result = address.thenCompose(resolved -> {
+            int token = target.token(System.currentTimeMillis());
+            CompletableFuture<Integer> challenge = token != Target.NO_TOKEN
+                    ? CompletableFuture.completedFuture(token)
+                    : handshake(target, resolved, timeoutMillis);
+            return challenge.thenCompose(value -> stat(resolved, value, timeoutMillis));
+        });
+        // a failure may be caused by a rotated token or a moved host, so start over next time
+        return result.whenComplete((names, error) -> {
+            if (error != null) {
+                target.invalidate();
+            }
+        });
+    }
+
+    /**
+     * Closes the channel and fails every outstanding query.
+     */
+    synchronized void close() {
+        closed = true;
+        resolver.shutdownNow();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+            channel = null;
+        }
+        for (Pending request : pending.values()) {
+            request.future.completeExceptionally(new ClosedChannelException());
+        }
+        pending.clear();
+    }
+
+    private CompletableFuture<Integer> handshake(Target target, InetSocketAddress address, int timeoutMillis) {
+        return send(address, TYPE_HANDSHAKE, timeoutMillis, sessionId -> {
+            ByteBuffer buffer = ByteBuffer.allocate(7);
+            buffer.put((byte) 0xFE);
+            buffer.put((byte) 0xFD);
+            buffer.put(TYPE_HANDSHAKE);
+            buffer.putInt(sessionId);
+            return buffer.flip();
+        }).thenApply(response -> {
+            String challenge = readNullTerminatedString(response);
+            int token;
+            try {
+                token = Integer.parseInt(challenge.trim());
+            } catch (NumberFormatException e) {
+                throw new CompletionException(new IOException("Invalid challenge token: " + challenge, e));
+            }
+            target.token(token, System.currentTimeMillis());
+            return token;
+        });
+    }
+
+    private CompletableFuture<List<String>> stat(InetSocketAddress address, int token, int timeoutMillis) {
+        return send(address, TYPE_STAT, timeoutMillis, sessionId -> {
+            ByteBuffer buffer = ByteBuffer.allocate(15);
+            buffer.put((byte) 0xFE);
+            buffer.put((byte) 0xFD);
+            buffer.put(TYPE_STAT);
+            buffer.putInt(sessionId);
+            buffer.putInt(token);
+            buffer.putInt(0);
+            return buffer.flip();
+        }).thenApply(QueryClient::extractPlayersFromStat);
+    }
+
+    /**
+     * Registers a request under a fresh session id and sends it.
+     *
+     * @return the response payload after the type byte and session id
+     */
+    private CompletableFuture<ByteBuffer> send(InetSocketAddress address, byte type, int timeoutMillis,
+                                               RequestEncoder encoder) {
+        Pending request = new Pending(address, type);
+        int sessionId;
+        do {
+            // vanilla servers mask session ids with 0x0F0F0F0F, so only use bits that survive it
+            sessionId = ThreadLocalRandom.current().nextInt() & 0x0F0F0F0F;
+        } while (pending.putIfAbsent(sessionId, request) != null);
+
+        int id = sessionId;
+        request.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> pending.remove(id, request));
+        try {
+            channel().send(encoder.encode(id), address);
+        } catch (IOException e) {
+            request.future.completeExceptionally(e);
+        }
+        return request.future;
+    }
+
+    private synchronized DatagramChannel channel() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (channel == null) {
+            DatagramChannel opened = DatagramChannel.open();
+            opened.bind(null);
+            channel = opened;
+            receiver = daemon("BMenus-QueryReceiver").newThread(() -> receive(opened));
+            receiver.start();
+        }
+        return channel;
+    }
+
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(65507);
+        while (channel.isOpen()) {
+            SocketAddress sender;
+            try {
+                buffer.clear();
+                sender = channel.receive(buffer);
+            } catch (IOException e) {
+                // closed by close(); outstanding futures were already failed there
+                return;
+            }
+            buffer.flip();
+            if (buffer.remaining() < 5) {
+                continue;
+            }
+            byte type = buffer.get();
+            int sessionId = buffer.getInt();
+            Pending request = pending.get(sessionId);
+            if (request == null || request.type != type || !request.address.equals(sender)) {
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(buffer.remaining());
+            payload.put(buffer).flip();
+            request.future.complete(payload);
+        }
+    }
+
+    private static String readNullTerminatedString(ByteBuffer buffer) {
+        StringBuilder builder = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            byte value = buffer.get();
+            if (value == 0) {
+                break;
+            }
+            builder.append((char) (value & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    static List<String> extractPlayersFromStat(ByteBuffer payload) {
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0) {
+                segments.add(new String(data, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            segments.add(new String(data, start, data.length - start, StandardCharsets.UTF_8));
+        }
+
+        int playerIndex = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            String value = sanitizeSegment(segments.get(i));
+            if ("player_".equals(value)) {
+                playerIndex = i;
+                break;
+            }
+        }
+
+        if (playerIndex == -1) {
+            return Collections.emptyList();
+        }
+
+        int index = playerIndex + 1;
+        while (index < segments.size() && sanitizeSegment(segments.get(index)).isEmpty()) {
+            index++;
+        }
+
+        List<String> players = new ArrayList<>();
+        for (; index < segments.size(); index++) {
+            String player = sanitizeSegment(segments.get(index));
+            if (player.isEmpty()) {
+                break;
+            }
+            players.add(player);
+        }
+        return players;
+    }
+
+    private static String sanitizeSegment(String value) {
+        if (value == null || value.isEmpty()) {
+            return "";
+        }
+        int start = 0;
+        while (start < value.length() && (value.charAt(start) == 0 || value.charAt(start) == 1)) {
+            start++;
+        }
+        if (start >= value.length()) {
+            return "";
+        }
+        return value.substring(start);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @FunctionalInterface
+    interface AddressResolver {
+        InetAddress resolve(String host) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RequestEncoder {
+        ByteBuffer encode(int sessionId);
+    }
+
+    private static final class Pending {
+        final InetSocketAddress address;
+        final byte type;
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+
+        Pending(InetSocketAddress address, byte type) {
+            this.address = address;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Cached resolution and challenge token of one queried server.
+     */
+    private static final class Target {
+        static final int NO_TOKEN = Integer.MIN_VALUE;
+
+        final String host;
+        final int port;
+        private InetSocketAddress address;
+        private long addressExpiry;
+        private int token = NO_TOKEN;
+        private long tokenExpiry;
+        private CompletableFuture<InetSocketAddress> resolving;
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        synchronized InetSocketAddress address(long now) {
+            return now < addressExpiry ? address : null;
+        }
+
+        /**
+         * Returns the running lookup of this target, or starts one.
+         */
+        synchronized CompletableFuture<InetSocketAddress> resolve(AddressResolver resolver, Executor executor) {
+            if (resolving == null || resolving.isDone()) {
+                resolving = CompletableFuture.supplyAsync(() -> lookup(resolver), executor);
+            }
+            return resolving;
+        }
+
+        private InetSocketAddress lookup(AddressResolver resolver) {
+            InetSocketAddress resolved;
+            try {
+                resolved = new InetSocketAddress(resolver.resolve(host), port);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            synchronized (this) {
+                address = resolved;
+                addressExpiry = System.currentTimeMillis() + ADDRESS_LIFETIME_MILLIS;
+            }
+            return resolved;
+        }
+
+        synchronized int token(long now) {
+            return now < tokenExpiry ? token : NO_TOKEN;
+        }
+
+        synchronized void token(int value, long now) {
+            token = value;
+            tokenExpiry = now + TOKEN_LIFETIME_MILLIS;
+        }
+
+        synchronized void invalidate() {
+            addressExpiry = 0L;
+            tokenExpiry = 0L;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.extension.Extension;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps usage in a SQL database, one row per player and command, so several proxies can share it.
+ * <p>
+ * By default this is an embedded H2 database in the data folder opened with {@code AUTO_SERVER=TRUE}:
+ * the first process to open it serves it to the others, so proxies on the same host or on a shared
+ * volume read and write the same usage. Any other JDBC URL works as well if its driver is on the
+ * extension's classpath.
+ * <p>
+ * Increments are queued like journal records and written by the saver thread every commit interval.
+ * A batch is summed per player and command first, then applied in one transaction as a batch of
+ * updates that add to the stored values, followed by a batch of inserts for rows that did not exist.
+ * Rows are only ever added to, so proxies never overwrite each other's increments. A player who got a
+ * new row in the batch is then trimmed to {@code max-commands} rows, dropping the lowest ranked ones as
+ * the in-memory record does. Players are read lazily, one query each, when their record is first
+ * needed.
+ */
+final class SqlUsageStore implements UsageStore {
+
+    static final String DEFAULT_DRIVER = "org.h2.Driver";
+
+    private static final String TABLE = "bmenus_usage";
+    // the key column is bounded so that every database can index it
+    private static final int MAX_COMMAND_LENGTH = 1024;
+    private static final int WRITE_ATTEMPTS = 3;
+    private static final int OPEN_ATTEMPTS = 5;
+    private static final long OPEN_RETRY_MILLIS = 500;
+
+    // without a cast some databases type these parameters after the BIGINT they are combined with
+    private static final String RATE = "CAST(? AS DOUBLE PRECISION)";
+    private static final String SCORE = "CAST(? AS DOUBLE PRECISION)";
+
+    private static final String CREATE = "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+            + "player_uuid CHAR(36) NOT NULL, "
+            + "command VARCHAR(" + MAX_COMMAND_LENGTH + ") NOT NULL, "
+            + "uses INT NOT NULL, "
+            + "last_used BIGINT NOT NULL, "
+            + "score DOUBLE PRECISION NOT NULL, "
+            + "PRIMARY KEY (player_uuid, command))";
+    private static final String SELECT = "SELECT command, uses, last_used, score FROM " + TABLE
+            + " WHERE player_uuid = ?";
+    // the score is decayed to the later of the two timestamps before the batch's score is added,
+    // exactly as PlayerUsage.Settings.addUse does in memory
+    private static final String UPDATE = "UPDATE " + TABLE + " SET uses = uses + ?, "
+            + "score = CASE WHEN last_used <= ? THEN score * EXP(" + RATE + " * (last_used - ?)) + " + SCORE + " "
+            + "ELSE score + " + SCORE + " * EXP(" + RATE + " * (? - last_used)) END, "
+            + "last_used = CASE WHEN last_used < ? THEN ? ELSE last_used END "
+            + "WHERE player_uuid = ? AND command = ?";
+    private static final String INSERT = "INSERT INTO " + TABLE
+            + " (player_uuid, command, uses, last_used, score) VALUES (?, ?, ?, ?, ?)";
+    private static final String RANKED_BY_COUNT = "SELECT command FROM " + TABLE
+            + " WHERE player_uuid = ? ORDER BY uses DESC, last_used DESC, command";
+    private static final String RANKED_BY_SCORE = "SELECT command FROM " + TABLE
+            + " WHERE player_uuid = ? ORDER BY score * EXP(" + RATE + " * (last_used - ?)) DESC, last_used DESC, command";
+    private static final String DELETE_ROW = "DELETE FROM " + TABLE + " WHERE player_uuid = ? AND command = ?";
+    private static final String DELETE_EXPIRED = "DELETE FROM " + TABLE + " WHERE last_used < ?";
+    private static final String DELETE_FADED = "DELETE FROM " + TABLE
+            + " WHERE score * EXP(" + RATE + " * (last_used - ?)) < " + SCORE;
+
+    private final Extension extension;
+    private final CommandDictionary dictionary;
+    private final String url;
+    private final String driverClass;
+    private final Properties properties = new Properties();
+    private final Queue<Increment> pending = new ConcurrentLinkedQueue<>();
+    private final Metrics.Histogram batchSize;
+    private final Metrics.Histogram compactTime;
+
+    private volatile Driver driver;
+    private PlayerUsage.Settings settings;
+    private final Map<Key, Delta> unsaved = new HashMap<>();
+    private Connection writer;
+    private PreparedStatement update;
+    private PreparedStatement insert;
+    private PreparedStatement deleteRow;
+
+    private final Object readLock = new Object();
+    private Connection reader;
+    private PreparedStatement select;
+
+    private volatile long sequence = 1L;
+    private volatile long persisted;
+    private volatile boolean warnedLength;
+
+    /**
+     * @param url the JDBC URL, or {@code null} for the embedded H2 database in the data folder
+     */
+    SqlUsageStore(Extension extension, CommandDictionary dictionary, Metrics metrics,
+                  String url, String driverClass, String user, String password) {
+        this.extension = extension;
+        this.dictionary = dictionary;
+        this.url = url != null ? url
+                : "jdbc:h2:file:" + extension.dataFolder().resolve("usage-db").toAbsolutePath() + ";AUTO_SERVER=TRUE";
+        this.driverClass = driverClass;
+        if (user != null) {
+            properties.setProperty("user", user);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        this.batchSize = metrics.histogram("usage.sql.batch.rows");
+        this.compactTime = metrics.histogram("usage.compact.us");
+    }
+
+    /**
+     * Loads the driver with the extension's class loader, which {@link DriverManager} would not search,
+     * and creates the table if it does not exist yet. Opening is retried a few times because H2 turns
+     * away a process that opens the file at the same moment as another, as when proxies start together.
+     */
+    @Override
+    public void open(PlayerUsage.Settings settings) throws IOException {
+        this.settings = settings;
+        try {
+            driver = (Driver) Class.forName(driverClass, true, SqlUsageStore.class.getClassLoader())
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IOException("Unable to load JDBC driver " + driverClass, e);
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                openWriter();
+                synchronized (readLock) {
+                    reader = connect();
+                    select = reader.prepareStatement(SELECT);
+                }
+                break;
+            } catch (SQLException e) {
+                close();
+                if (attempt >= OPEN_ATTEMPTS) {
+                    throw new IOException("Unable to open usage database " + url, e);
+                }
+            }
+            try {
+                Thread.sleep(OPEN_RETRY_MILLIS * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while opening usage database " + url, e);
+            }
+        }
+        extension.logger().info("Storing usage in " + url);
+    }
+
+    private void openWriter() throws SQLException {
+        writer = connect();
+        try (Statement statement = writer.createStatement()) {
+            statement.executeUpdate(CREATE);
+        }
+        writer.setAutoCommit(false);
+        update = writer.prepareStatement(UPDATE);
+        insert = writer.prepareStatement(INSERT);
+        deleteRow = writer.prepareStatement(DELETE_ROW);
+    }
+
+    private Connection connect() throws SQLException {
+        Connection connection = driver.connect(url, properties);
+        if (connection == null) {
+            throw new SQLException(driverClass + " does not accept " + url);
+        }
+        return connection;
+    }
+
+    @Override
+    public PlayerUsage load(UUID uuid) throws IOException {
+        if (driver == null) {
+            throw new IOException("The usage database is not open");
+        }
+        synchronized (readLock) {
+            try {
+                if (select == null || reader.isClosed()) {
+                    reader = connect();
+                    select = reader.prepareStatement(SELECT);
+                }
+                select.setString(1, uuid.toString());
+                PlayerUsage record = null;
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        if (record == null) {
+                            record = new PlayerUsage();
+                        }
+                        record.put(dictionary.intern(rows.getString(1)), rows.getInt(2), rows.getLong(3),
+                                (float) rows.getDouble(4));
+                    }
+                }
+                return record;
+            } catch (SQLException e) {
+                throw new IOException("Unable to read usage of " + uuid, e);
+            }
+        }
+    }
+
+    /**
+     * Commands longer than the command column are not queued: the row could never be written, and the
+     * player's usage of them stays in memory only.
+     */
+    @Override
+    public long append(UUID uuid, String command, long time) {
+        if (command.length() > MAX_COMMAND_LENGTH) {
+            if (!warnedLength) {
+                warnedLength = true;
+                extension.logger().warning("Not storing usage of commands longer than " + MAX_COMMAND_LENGTH
+                        + " characters in " + url + ", first seen from " + uuid);
+            }
+            return sequence;
+        }
+        pending.add(new Increment(uuid, command, time));
+        return sequence;
+    }
+
+    @Override
+    public long persisted() {
+        return persisted;
+    }
+
+    /**
+     * Writes every increment queued so far as one transaction. Increments of a failed batch are kept and
+     * written with the next one.
+     */
+    @Override
+    public void commit(PlayerUsage.Settings settings) throws IOException {
+        if (driver == null) {
+            // opening failed and was reported; keep the increments queued
+            return;
+        }
+        this.settings = settings;
+        // an increment read this sequence either before or after the bump; both are >= this batch
+        long batch = sequence;
+        sequence = batch + 1;
+        Increment increment;
+        while ((increment = pending.poll()) != null) {
+            unsaved.computeIfAbsent(new Key(increment.uuid, increment.command), key -> new Delta())
+                    .add(increment.time, settings);
+        }
+        if (!unsaved.isEmpty()) {
+            int rows = unsaved.size();
+            try {
+                write(settings);
+            } catch (SQLException e) {
+                resetWriter();
+                throw new IOException("Unable to write usage to " + url, e);
+            }
+            batchSize.record(rows);
+            unsaved.clear();
+        }
+        persisted = batch;
+    }
+
+    /**
+     * Applies the summed batch. If another proxy inserts one of the new rows between our update and
+     * insert, the transaction is rolled back and retried, and the row is then updated instead. A batch
+     * that keeps failing on a live connection is written row by row, and a row that fails on its own is
+     * dropped so it cannot hold back every later batch.
+     */
+    private void write(PlayerUsage.Settings settings) throws SQLException {
+        if (writer == null) {
+            openWriter();
+        }
+        List<Map.Entry<Key, Delta>> rows = new ArrayList<>(unsaved.entrySet());
+        try {
+            writeAttempts(rows, settings);
+            return;
+        } catch (SQLException e) {
+            if (!writer.isValid(1)) {
+                throw e;
+            }
+        }
+        for (Map.Entry<Key, Delta> row : rows) {
+            try {
+                writeAttempts(List.of(row), settings);
+            } catch (SQLException e) {
+                if (!writer.isValid(1)) {
+                    throw e;
+                }
+                extension.logger().warning("Dropping usage of " + row.getKey().command + " by "
+                        + row.getKey().uuid + " that " + url + " refuses: " + e.getMessage());
+            }
+            // written or dropped, it must not be applied again if a later row finds the connection gone
+            unsaved.remove(row.getKey());
+        }
+    }
+
+    private void writeAttempts(List<Map.Entry<Key, Delta>> rows, PlayerUsage.Settings settings) throws SQLException {
+        double rate = settings.decayRate();
+        for (int attempt = 1; ; attempt++) {
+            Set<UUID> grown = new HashSet<>();
+            try {
+                for (Map.Entry<Key, Delta> row : rows) {
+                    Delta delta = row.getValue();
+                    update.setInt(1, delta.uses);
+                    update.setLong(2, delta.last);
+                    update.setDouble(3, rate);
+                    update.setLong(4, delta.last);
+                    update.setDouble(5, delta.score);
+                    update.setDouble(6, delta.score);
+                    update.setDouble(7, rate);
+                    update.setLong(8, delta.last);
+                    update.setLong(9, delta.last);
+                    update.setLong(10, delta.last);
+                    update.setString(11, row.getKey().uuid.toString());
+                    update.setString(12, row.getKey().command);
+                    update.addBatch();
+                }
+                int[] updated = update.executeBatch();
+                boolean inserts = false;
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] != 0) {
+                        continue;
+                    }
+                    Map.Entry<Key, Delta> row = rows.get(i);
+                    insert.setString(1, row.getKey().uuid.toString());
+                    insert.setString(2, row.getKey().command);
+                    insert.setInt(3, row.getValue().uses);
+                    insert.setLong(4, row.getValue().last);
+                    insert.setDouble(5, row.getValue().score);
+                    insert.addBatch();
+                    inserts = true;
+                    grown.add(row.getKey().uuid);
+                }
+                if (inserts) {
+                    insert.executeBatch();
+                }
+                for (UUID uuid : grown) {
+                    trim(uuid, settings);
+                }
+                writer.commit();
+                return;
+            } catch (SQLException e) {
+                update.clearBatch();
+                insert.clearBatch();
+                deleteRow.clearBatch();
+                writer.rollback();
+                if (attempt >= WRITE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a player's rows beyond {@code max-commands}, lowest ranked first.
+     */
+    private void trim(UUID uuid, PlayerUsage.Settings settings) throws SQLException {
+        boolean frecency = settings.ranking == PlayerUsage.Ranking.FRECENCY;
+        try (PreparedStatement ranked = writer.prepareStatement(frecency ? RANKED_BY_SCORE : RANKED_BY_COUNT)) {
+            ranked.setString(1, uuid.toString());
+            if (frecency) {
+                ranked.setDouble(2, settings.decayRate());
+                ranked.setLong(3, System.currentTimeMillis());
+            }
+            int kept = 0;
+            boolean deletes = false;
+            try (ResultSet commands = ranked.executeQuery()) {
+                while (commands.next()) {
+                    if (kept < settings.maxCommands) {
+                        kept++;
+                        continue;
+                    }
+                    deleteRow.setString(1, uuid.toString());
+                    deleteRow.setString(2, commands.getString(1));
+                    deleteRow.addBatch();
+                    deletes = true;
+                }
+            }
+            if (deletes) {
+                deleteRow.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Drops a broken connection so the next commit opens a new one.
+     */
+    private void resetWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (writer.isValid(1)) {
+                return;
+            }
+            writer.close();
+        } catch (SQLException ignored) {
+            // reopened below either way
+        }
+        writer = null;
+    }
+
+    /**
+     * Writes queued increments and deletes rows that expired, or faded below {@code min-score} with
+     * frecency ranking. Every proxy prunes; deleting the same rows twice does no harm.
+     */
+    @Override
+    public void compact(PlayerUsage.Settings settings) throws IOException {
+        commit(settings);
+        if (driver == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        try {
+            if (writer == null) {
+                openWriter();
+            }
+            if (settings.ranking == PlayerUsage.Ranking.FRECENCY) {
+                try (PreparedStatement delete = writer.prepareStatement(DELETE_FADED)) {
+                    delete.setDouble(1, settings.decayRate());
+                    delete.setLong(2, now);
+                    delete.setDouble(3, settings.minScore);
+                    delete.executeUpdate();
+                }
+            } else {
+                try (PreparedStatement delete = writer.prepareStatement(DELETE_EXPIRED)) {
+                    delete.setLong(1, now - settings.expiryMillis);
+                    delete.executeUpdate();
+                }
+            }
+            writer.commit();
+        } catch (SQLException e) {
+            resetWriter();
+            throw new IOException("Unable to prune usage in " + url, e);
+        }
+        compactTime.recordSince(start);
+    }
+
+    /**
+     * Loaded rows are interned into new records and queued increments keep their command text, so the
+     * store itself holds no ids.
+     */
+    @Override
+    public void markCommands(BitSet live) {
+    }
+
+    @Override
+    public boolean shared() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        if (settings != null && writer != null) {
+            try {
+                commit(settings);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        closeQuietly(writer);
+        writer = null;
+        synchronized (readLock) {
+            closeQuietly(reader);
+            reader = null;
+            select = null;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // nothing left to release
+        }
+    }
+
+    private record Increment(UUID uuid, String command, long time) {
+    }
+
+    private record Key(UUID uuid, String command) {
+    }
+
+    /**
+     * The uses of one command by one player within a batch, scored as of the latest of them.
+     */
+    private static final class Delta {
+        int uses;
+        long last;
+        float score;
+
+        void add(long time, PlayerUsage.Settings settings) {
+            uses++;
+            score = settings.addUse(score, last, time);
+            last = Math.max(last, time);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.extension.Extension;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of command usage increments.
+ * <p>
+ * Click handlers only enqueue records; the saver thread writes everything queued so far with a single
+ * channel write (group commit) and forces it to disk according to the configured {@link FsyncPolicy}.
+ * The log is split into numbered segments ({@code usage-<id>.journal}). Compaction seals the active
+ * segment, folds sealed segments into the snapshot and deletes them once no snapshot backup predates
+ * them. The snapshot remembers the last folded segment id so a crash between those steps never replays
+ * a record twice, and a backup can be brought up to date from the segments that are kept.
+ * <p>
+ * Record layout: {@code int length, int crc32, long uuidMost, long uuidLeast, long time, int
+ * commandLength, byte[] command}. {@code length} and the checksum cover everything after the checksum.
+ * A torn or corrupt record ends replay of its segment.
+ */
+final class UsageJournal {
+
+    private static final String PREFIX = "usage-";
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 8 + 8 + 4;
+
+    enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    private final Extension extension;
+    private final Path folder;
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    private FileChannel channel;
+    private volatile long activeId;
+    private long activeBytes;
+    private long lastForceMillis;
+
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    private volatile long fsyncIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+
+    UsageJournal(Extension extension, Path folder) {
+        this.extension = extension;
+        this.folder = folder;
+    }
+
+    void configure(FsyncPolicy policy, long fsyncIntervalMillis) {
+        this.fsyncPolicy = policy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Queues one usage increment. Safe to call from any thread; never blocks.
+     */
+    void append(UUID uuid, String command, long time) {
+        pending.add(new Record(uuid, command, time));
+    }
+
+    /**
+     * Replays every record in segments newer than {@code foldedId}, oldest first, and opens a fresh
+     * active segment after them. Only called by the saver thread.
+     *
+     * @return the id of the newest replayed segment, or {@code foldedId} if there was none
+     */
+    long open(long foldedId, RecordConsumer consumer) throws IOException {
+        close();
+        long maxId = foldedId;
+        for (long id : segmentIds()) {
+            if (id > foldedId) {
+                replay(id, consumer);
+                maxId = Math.max(maxId, id);
+            }
+        }
+        activeId = maxId + 1;
+        openActive();
+        return maxId;
+    }
+
+    /**
+     * Writes all queued records in one batch. Only called by the saver thread.
+     *
+     * @return the number of records written
+     */
+    int flush() throws IOException {
+        if (channel == null || pending.isEmpty()) {
+            return 0;
+        }
+        buffer.clear();
+        int written = 0;
+        Record record;
+        while ((record = pending.poll()) != null) {
+            encode(record);
+            written++;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            activeBytes += channel.write(buffer);
+        }
+
+        long now = System.currentTimeMillis();
+        FsyncPolicy policy = fsyncPolicy;
+        if (policy == FsyncPolicy.ALWAYS
+                || (policy == FsyncPolicy.INTERVAL && now - lastForceMillis >= fsyncIntervalMillis)) {
+            channel.force(false);
+            lastForceMillis = now;
+        }
+        return written;
+    }
+
+    /**
+     * Returns the id of the segment currently being written. Read after {@link #append} it names the
+     * segment that will hold the appended record, or a later one: {@link #seal} moves to the next id
+     * before it writes the last batch of the sealed segment.
+     */
+    long activeId() {
+        return activeId;
+    }
+
+    long activeBytes() {
+        return activeBytes;
+    }
+
+    /**
+     * Flushes and closes the active segment and starts the next one.
+     *
+     * @return the id of the sealed segment; it and every older segment may now be folded
+     */
+    long seal() throws IOException {
+        long sealed = activeId;
+        activeId = sealed + 1;
+        flush();
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        openActive();
+        return sealed;
+    }
+
+    /**
+     * Returns whether any sealed segment after {@code foldedId} is still waiting to be folded into the
+     * snapshot.
+     */
+    boolean hasSealedSegments(long foldedId) throws IOException {
+        for (long id : segmentIds()) {
+            if (id > foldedId && id < activeId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replays sealed segments in {@code (afterId, upToId]}, oldest first.
+     */
+    void replaySealed(long afterId, long upToId, RecordConsumer consumer) throws IOException {
+        for (long id : segmentIds()) {
+            if (id > afterId && id <= upToId) {
+                replay(id, consumer);
+            }
+        }
+    }
+
+    /**
+     * Deletes segments that have been folded into a persisted snapshot and all of its backups.
+     */
+    void deleteUpTo(long id) throws IOException {
+        for (long segment : segmentIds()) {
+            if (segment <= id) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void openActive() throws IOException {
+        Files.createDirectories(folder);
+        channel = FileChannel.open(segmentPath(activeId), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeBytes = channel.size();
+        lastForceMillis = System.currentTimeMillis();
+    }
+
+    private void encode(Record record) {
+        byte[] command = record.command.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_PAYLOAD_BYTES + command.length;
+        if (buffer.remaining() < HEADER_BYTES + length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + HEADER_BYTES + length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(record.uuid.getMostSignificantBits());
+        buffer.putLong(record.uuid.getLeastSignificantBits());
+        buffer.putLong(record.time);
+        buffer.putInt(command.length);
+        buffer.put(command);
+
+        crc.reset();
+        crc.update(buffer.array(), start + HEADER_BYTES, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void replay(long id, RecordConsumer consumer) throws IOException {
+        Path path = segmentPath(id);
+        byte[] data = Files.readAllBytes(path);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CRC32 check = new CRC32();
+        while (in.remaining() >= HEADER_BYTES) {
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < FIXED_PAYLOAD_BYTES || length > in.remaining()) {
+                warnTruncated(path, in.position() - HEADER_BYTES);
+                return;
+            }
+            check.reset();
+            check.update(data, in.position(), length);
+            if ((int) check.getValue() != expected) {
+                warnTruncated(path, in.position() - HEADER_BYTES);
+                return;
+            }
+            UUID uuid = new UUID(in.getLong(), in.getLong());
+            long time = in.getLong();
+            int commandLength = in.getInt();
+            if (commandLength < 0 || commandLength > in.remaining()) {
+                warnTruncated(path, in.position() - FIXED_PAYLOAD_BYTES - HEADER_BYTES);
+                return;
+            }
+            String command = new String(data, in.position(), commandLength, StandardCharsets.UTF_8);
+            in.position(in.position() + commandLength);
+            consumer.accept(uuid, command, time);
+        }
+        if (in.hasRemaining()) {
+            warnTruncated(path, in.position());
+        }
+    }
+
+    private void warnTruncated(Path path, int offset) {
+        extension.logger().warning("Ignoring incomplete usage journal record in " + path.getFileName() + " at byte " + offset);
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        if (Files.notExists(folder)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private Path segmentPath(long id) {
+        return folder.resolve(PREFIX + id + SUFFIX);
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(UUID uuid, String command, long time);
+    }
+
+    private record Record(UUID uuid, String command, long time) {
+    }
+}
@@ -0,0 +1,574 @@
+package org.geyser.extension.bmenus;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes usage snapshots.
+ * <p>
+ * The binary format (version 3, big endian) is laid out so loading is one sequential pass over a
+ * memory-mapped file:
+ * <pre>
+ * int    magic "BMUS"
+ * int    version
+ * long   last folded journal segment
+ * int    command count, then per command: int byteLength, byte[] utf8
+ * int    player count, then per player (sorted by UUID): long most, long least, int firstEntry, int entryCount
+ * int    entry count, then int[] commandIds, int[] counts, long[] lastUsed, float[] scores
+ * int    crc32 of everything before it
+ * </pre>
+ * Version 1 files have no scores; each entry is then scored as if all its uses happened at its last use.
+ * Versions 1 and 2 have no checksum and are otherwise read like version 3.
+ * Command ids are local to the file; each player's entries are stored in rank order. Because the player
+ * table is sorted, an {@link Index} over the mapped file can load a single player with a binary search
+ * instead of reading everything. The YAML formats written by earlier versions can still be imported, and
+ * {@link #main(String[])} converts between the two for debugging.
+ * <p>
+ * A new snapshot is written to a temporary file, forced to disk and renamed over the old one, so a crash
+ * leaves either the old or the new file. The replaced files are kept as numbered backups
+ * ({@code usage.dat.1} is the newest) to fall back on if the current one turns out to be corrupt.
+ */
+final class UsageSnapshot {
+
+    static final int MAGIC = 0x424D5553;
+    static final int VERSION = 3;
+
+    static final String JOURNAL_KEY = "journal";
+
+    private static final int PLAYER_ROW_BYTES = 2 * Long.BYTES + 2 * Integer.BYTES;
+
+    private UsageSnapshot() {
+    }
+
+    /**
+     * Maps a binary snapshot for on-demand lookups. The snapshot's command table is interned into
+     * {@code dictionary} once, so loading a player only copies ints.
+     */
+    static Index open(Path path, CommandDictionary dictionary) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Index(buffer, dictionary);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Truncated usage snapshot " + path.getFileName(), e);
+        }
+    }
+
+    /**
+     * Returns the path of backup {@code generation}, where {@code 0} is the snapshot itself.
+     */
+    static Path backup(Path path, int generation) {
+        return generation == 0 ? path : path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    /**
+     * Returns the oldest journal segment id folded into the snapshot or any of its backups, so that
+     * journal segments after it can be kept for a fallback. Files that cannot be read are skipped.
+     *
+     * @param foldedSegment the segment folded into the snapshot at {@code path}
+     */
+    static long oldestFoldedSegment(Path path, int backups, long foldedSegment) {
+        long oldest = foldedSegment;
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES);
+        for (int generation = 1; generation <= backups; generation++) {
+            Path backup = backup(path, generation);
+            if (Files.notExists(backup)) {
+                continue;
+            }
+            header.clear();
+            try (FileChannel channel = FileChannel.open(backup, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // read the whole header
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            if (!header.hasRemaining() && header.getInt(0) == MAGIC) {
+                oldest = Math.min(oldest, header.getLong(2 * Integer.BYTES));
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Writes a binary snapshot to a temporary file and moves it over {@code path}, keeping up to
+     * {@code backups} previous files. Players present in {@code overrides} are written from those
+     * records; every other player in {@code base} is copied unchanged. Only the file's own command
+     * table leaves out commands no player in it uses; the dictionary keeps every id, which only
+     * {@link CommandDictionary#reclaim} frees.
+     *
+     * @param base the previous snapshot, or {@code null} to write only {@code overrides}
+     */
+    static void write(Path path, Index base, Map<UUID, PlayerUsage> overrides, long foldedSegment,
+                      CommandDictionary dictionary, int backups) throws IOException {
+        List<UUID> changed = new ArrayList<>(overrides.keySet());
+        changed.sort(null);
+
+        IntList commands = new IntList();
+        int[][] localIds = {new int[Math.max(16, dictionary.size())]};
+        EntryBuffer entries = new EntryBuffer();
+        PlayerUsage.EntryVisitor collector = (id, count, last, score) -> {
+            int[] remap = localIds[0];
+            if (id >= remap.length) {
+                remap = localIds[0] = Arrays.copyOf(remap, Math.max(id + 1, remap.length * 2));
+            }
+            if (remap[id] == 0) {
+                commands.add(id);
+                remap[id] = commands.size;
+            }
+            entries.add(remap[id] - 1, count, last, score);
+        };
+
+        List<UUID> players = new ArrayList<>();
+        IntList ranges = new IntList();
+        int basePlayers = base == null ? 0 : base.players();
+        int baseIndex = 0;
+        int changedIndex = 0;
+        while (baseIndex < basePlayers || changedIndex < changed.size()) {
+            int order;
+            if (baseIndex >= basePlayers) {
+                order = 1;
+            } else if (changedIndex >= changed.size()) {
+                order = -1;
+            } else {
+                order = base.compare(baseIndex, changed.get(changedIndex));
+            }
+
+            int first = entries.size;
+            if (order < 0) {
+                players.add(base.uuid(baseIndex));
+                base.forEach(baseIndex++, collector);
+            } else {
+                UUID uuid = changed.get(changedIndex++);
+                players.add(uuid);
+                overrides.get(uuid).forEach(collector);
+                if (order == 0) {
+                    baseIndex++;
+                }
+            }
+            ranges.add(first);
+            ranges.add(entries.size - first);
+        }
+
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(foldedSegment);
+
+            buffer.putInt(commands.size);
+            for (int i = 0; i < commands.size; i++) {
+                byte[] bytes = dictionary.command(commands.get(i)).getBytes(StandardCharsets.UTF_8);
+                buffer = ensure(channel, buffer, Integer.BYTES + bytes.length, crc);
+                buffer.putInt(bytes.length).put(bytes);
+            }
+
+            buffer = ensure(channel, buffer, Integer.BYTES, crc);
+            buffer.putInt(players.size());
+            for (int i = 0; i < players.size(); i++) {
+                buffer = ensure(channel, buffer, PLAYER_ROW_BYTES, crc);
+                UUID uuid = players.get(i);
+                buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+                buffer.putInt(ranges.get(i * 2)).putInt(ranges.get(i * 2 + 1));
+            }
+
+            buffer = ensure(channel, buffer, Integer.BYTES, crc);
+            buffer.putInt(entries.size);
+            for (int i = 0; i < entries.size; i++) {
+                buffer = ensure(channel, buffer, Integer.BYTES, crc);
+                buffer.putInt(entries.ids[i]);
+            }
+            for (int i = 0; i < entries.size; i++) {
+                buffer = ensure(channel, buffer, Integer.BYTES, crc);
+                buffer.putInt(entries.counts[i]);
+            }
+            for (int i = 0; i < entries.size; i++) {
+                buffer = ensure(channel, buffer, Long.BYTES, crc);
+                buffer.putLong(entries.lasts[i]);
+            }
+            for (int i = 0; i < entries.size; i++) {
+                buffer = ensure(channel, buffer, Float.BYTES, crc);
+                buffer.putFloat(entries.scores[i]);
+            }
+            drain(channel, buffer, crc);
+            buffer.putInt((int) crc.getValue());
+            drain(channel, buffer, null);
+            channel.force(true);
+        }
+        install(temp, path, backups);
+    }
+
+    /**
+     * Reads usage.yml in either the {@code count}/{@code last}/{@code score} layout or the legacy layout
+     * that only stored counts. A missing score is taken from the count.
+     *
+     * @return the id of the last journal segment folded into the file, or 0 if it predates the journal
+     */
+    static long readYaml(Path path, Map<UUID, PlayerUsage> target, CommandDictionary dictionary) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path)) {
+            Yaml yaml = new Yaml();
+            Map<String, Object> root = yaml.load(reader);
+            if (root == null) {
+                return 0L;
+            }
+            long folded = 0L;
+            for (Map.Entry<String, Object> entry : root.entrySet()) {
+                if (JOURNAL_KEY.equals(entry.getKey())) {
+                    Object segment = ((Map<String, Object>) entry.getValue()).get("folded-segment");
+                    if (segment instanceof Number number) {
+                        folded = number.longValue();
+                    }
+                    continue;
+                }
+                UUID uuid = UUID.fromString(entry.getKey());
+                Map<String, Object> cmds = (Map<String, Object>) entry.getValue();
+                PlayerUsage record = new PlayerUsage();
+                for (Map.Entry<String, Object> cmd : cmds.entrySet()) {
+                    Object val = cmd.getValue();
+                    if (val instanceof Map<?, ?> data) {
+                        Number count = (Number) data.get("count");
+                        Number last = (Number) data.get("last");
+                        Number score = (Number) data.get("score");
+                        int uses = count == null ? 0 : count.intValue();
+                        record.put(dictionary.intern(cmd.getKey()), uses, last == null ? 0L : last.longValue(),
+                                score == null ? uses : score.floatValue());
+                    } else if (val instanceof Number num) { // legacy format
+                        record.put(dictionary.intern(cmd.getKey()), num.intValue(), 0L, num.floatValue());
+                    }
+                }
+                target.put(uuid, record);
+            }
+            return folded;
+        }
+    }
+
+    /**
+     * Writes records in the {@code count}/{@code last}/{@code score} YAML layout.
+     */
+    static void writeYaml(Path path, Map<UUID, PlayerUsage> records, long foldedSegment,
+                          CommandDictionary dictionary) throws IOException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put(JOURNAL_KEY, Map.of("folded-segment", foldedSegment));
+        for (Map.Entry<UUID, PlayerUsage> entry : records.entrySet()) {
+            Map<String, Object> cmds = new LinkedHashMap<>();
+            entry.getValue().forEach((id, count, last, score) -> {
+                Map<String, Object> data = new LinkedHashMap<>();
+                data.put("count", count);
+                data.put("last", last);
+                data.put("score", score);
+                cmds.put(dictionary.command(id), data);
+            });
+            root.put(entry.getKey().toString(), cmds);
+        }
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Yaml yaml = new Yaml();
+        try (Writer writer = Files.newBufferedWriter(temp)) {
+            yaml.dump(root, writer);
+        }
+        move(temp, path);
+    }
+
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, int bytes, CRC32 crc) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        drain(channel, buffer, crc);
+        if (buffer.capacity() < bytes) {
+            return ByteBuffer.allocate(bytes);
+        }
+        return buffer;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Moves a finished temporary file over {@code path}. The current file becomes backup 1 and older
+     * backups shift up, dropping the oldest. If the process dies in between, {@code path} is briefly
+     * missing and loading falls back to backup 1, which is the same data.
+     */
+    private static void install(Path temp, Path path, int backups) throws IOException {
+        if (backups > 0 && Files.exists(path)) {
+            for (int generation = backups - 1; generation >= 1; generation--) {
+                Path older = backup(path, generation);
+                if (Files.exists(older)) {
+                    move(older, backup(path, generation + 1));
+                }
+            }
+            move(path, backup(path, 1));
+        }
+        move(temp, path);
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Forces the directory entry changes of a rename to disk. Not every platform can open a directory,
+     * in which case the rename is only as durable as the file system makes it.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read-only view of a mapped binary snapshot. Only absolute reads are used, so lookups are safe
+     * from any thread.
+     */
+    static final class Index {
+        private final ByteBuffer buffer;
+        private final long foldedSegment;
+        private final int[] commandIds;
+        private final int players;
+        private final int tableStart;
+        private final int idsStart;
+        private final int countsStart;
+        private final int lastStart;
+        private final int scoreStart;
+
+        private Index(ByteBuffer buffer, CommandDictionary dictionary) throws IOException {
+            this.buffer = buffer;
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a usage snapshot");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported usage snapshot version " + version);
+            }
+            if (version >= 3) {
+                verify(buffer);
+            }
+            foldedSegment = buffer.getLong();
+
+            // versions before 3 have no checksum, so every count is checked against what is left of the
+            // file before anything is allocated for it
+            commandIds = new int[count(buffer, Integer.BYTES)];
+            for (int i = 0; i < commandIds.length; i++) {
+                byte[] bytes = new byte[count(buffer, 1)];
+                buffer.get(bytes);
+                commandIds[i] = dictionary.intern(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            players = count(buffer, PLAYER_ROW_BYTES);
+            tableStart = buffer.position();
+            buffer.position(tableStart + players * PLAYER_ROW_BYTES);
+            int entries = count(buffer, 2 * Integer.BYTES + Long.BYTES);
+            idsStart = buffer.position();
+            countsStart = idsStart + entries * Integer.BYTES;
+            lastStart = countsStart + entries * Integer.BYTES;
+            scoreStart = version == 1 ? -1 : lastStart + entries * Long.BYTES;
+            long end = lastStart + (long) entries * Long.BYTES + (version == 1 ? 0L : (long) entries * Float.BYTES)
+                    + (version >= 3 ? Integer.BYTES : 0L);
+            if (end != buffer.limit() && (version >= 3 || end > buffer.limit())) {
+                throw new IOException("Truncated usage snapshot");
+            }
+        }
+
+        /**
+         * Reads a count of items that take at least {@code bytes} each and checks that they fit in the rest
+         * of the buffer.
+         */
+        private static int count(ByteBuffer buffer, int bytes) throws IOException {
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / bytes) {
+                throw new IOException("Corrupt usage snapshot: count " + count + " at offset "
+                        + (buffer.position() - Integer.BYTES) + " exceeds the file");
+            }
+            return count;
+        }
+
+        /**
+         * Sets the dictionary ids of the commands in this snapshot.
+         */
+        void markCommands(BitSet live) {
+            for (int id : commandIds) {
+                live.set(id);
+            }
+        }
+
+        /**
+         * Checks the trailing checksum before anything else is read, so a damaged file is rejected
+         * before its command table is interned.
+         */
+        private static void verify(ByteBuffer buffer) throws IOException {
+            int end = buffer.limit() - Integer.BYTES;
+            if (end < buffer.position()) {
+                throw new IOException("Truncated usage snapshot");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit(end));
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new IOException("Usage snapshot checksum mismatch");
+            }
+        }
+
+        long foldedSegment() {
+            return foldedSegment;
+        }
+
+        int players() {
+            return players;
+        }
+
+        /**
+         * Loads one player's record, or returns {@code null} if the snapshot has no entry for them.
+         */
+        PlayerUsage load(UUID uuid) {
+            int low = 0;
+            int high = players - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int order = compare(mid, uuid);
+                if (order < 0) {
+                    low = mid + 1;
+                } else if (order > 0) {
+                    high = mid - 1;
+                } else {
+                    PlayerUsage record = new PlayerUsage();
+                    forEach(mid, record::put);
+                    return record;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Loads every player, for tools that need the whole snapshot.
+         */
+        void loadAll(Map<UUID, PlayerUsage> target) {
+            for (int i = 0; i < players; i++) {
+                PlayerUsage record = new PlayerUsage();
+                forEach(i, record::put);
+                target.put(uuid(i), record);
+            }
+        }
+
+        UUID uuid(int player) {
+            int row = tableStart + player * PLAYER_ROW_BYTES;
+            return new UUID(buffer.getLong(row), buffer.getLong(row + Long.BYTES));
+        }
+
+        /**
+         * Compares the UUID of a stored player with {@code uuid} using {@link UUID#compareTo} ordering.
+         */
+        int compare(int player, UUID uuid) {
+            int row = tableStart + player * PLAYER_ROW_BYTES;
+            int order = Long.compare(buffer.getLong(row), uuid.getMostSignificantBits());
+            return order != 0 ? order : Long.compare(buffer.getLong(row + Long.BYTES), uuid.getLeastSignificantBits());
+        }
+
+        void forEach(int player, PlayerUsage.EntryVisitor visitor) {
+            int row = tableStart + player * PLAYER_ROW_BYTES + 2 * Long.BYTES;
+            int first = buffer.getInt(row);
+            int end = first + buffer.getInt(row + Integer.BYTES);
+            for (int entry = first; entry < end; entry++) {
+                int count = buffer.getInt(countsStart + entry * Integer.BYTES);
+                visitor.visit(commandIds[buffer.getInt(idsStart + entry * Integer.BYTES)], count,
+                        buffer.getLong(lastStart + entry * Long.BYTES),
+                        scoreStart < 0 ? count : buffer.getFloat(scoreStart + entry * Float.BYTES));
+            }
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[256];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+    }
+
+    /**
+     * Growable column arrays for the packed entry section.
+     */
+    private static final class EntryBuffer {
+        int[] ids = new int[1024];
+        int[] counts = new int[1024];
+        long[] lasts = new long[1024];
+        float[] scores = new float[1024];
+        int size;
+
+        void add(int id, int count, long last, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+                lasts = Arrays.copyOf(lasts, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            ids[size] = id;
+            counts[size] = count;
+            lasts[size] = last;
+            scores[size] = score;
+            size++;
+        }
+    }
+
+    /**
+     * Converts snapshots for debugging:
+     * {@code export <usage.dat> <usage.yml>} or {@code import <usage.yml> <usage.dat>}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !("export".equals(args[0]) || "import".equals(args[0]))) {
+            System.err.println("Usage: UsageSnapshot export <usage.dat> <usage.yml>");
+            System.err.println("       UsageSnapshot import <usage.yml> <usage.dat>");
+            System.exit(1);
+            return;
+        }
+        Map<UUID, PlayerUsage> records = new LinkedHashMap<>();
+        CommandDictionary dictionary = new CommandDictionary();
+        Path source = Path.of(args[1]);
+        Path target = Path.of(args[2]);
+        if ("export".equals(args[0])) {
+            Index index = open(source, dictionary);
+            index.loadAll(records);
+            writeYaml(target, records, index.foldedSegment(), dictionary);
+        } else {
+            long folded = readYaml(source, records, dictionary);
+            write(target, null, records, folded, dictionary, 1);
+        }
+        System.out.println("Converted " + records.size() + " players to " + target);
+    }
+}
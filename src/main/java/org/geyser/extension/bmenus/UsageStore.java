@@ -0,0 +1,76 @@
+package org.geyser.extension.bmenus;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * Where players' command usage is kept between restarts.
+ * <p>
+ * Resident {@link PlayerUsage} records are the live state; a store only has to persist increments and
+ * hand back a player's record when it is not resident. Increments are passed to {@link #append} while
+ * the record is locked, so it must never block; the saver thread persists them in batches with
+ * {@link #commit}. Every increment is given a sequence number, and a record may be dropped from memory
+ * once {@link #persisted()} has reached the sequence of its latest increment, because {@link #load} then
+ * returns everything the record held.
+ * <p>
+ * Apart from {@link #append} and {@link #load}, methods are only called by the saver thread.
+ */
+interface UsageStore {
+
+    enum Type {
+        FILE,
+        SQL
+    }
+
+    /**
+     * Prepares the store for use, recovering increments left behind by an unclean shutdown.
+     */
+    void open(PlayerUsage.Settings settings) throws IOException;
+
+    /**
+     * Reads a player's stored usage, or returns {@code null} if nothing is stored for them. Called from
+     * any thread when a record is first needed.
+     */
+    PlayerUsage load(UUID uuid) throws IOException;
+
+    /**
+     * Queues one usage increment. Safe to call from any thread; never blocks.
+     *
+     * @return the sequence number of the batch that will hold the increment, or a later one
+     */
+    long append(UUID uuid, String command, long time);
+
+    /**
+     * Returns the newest sequence number whose increments {@link #load} is guaranteed to return.
+     */
+    long persisted();
+
+    /**
+     * Writes queued increments. Runs every {@code journal.commit-interval-ms}.
+     */
+    void commit(PlayerUsage.Settings settings) throws IOException;
+
+    /**
+     * Folds, prunes or otherwise tidies stored usage. Runs every {@code flush-interval-seconds} and on
+     * shutdown.
+     */
+    void compact(PlayerUsage.Settings settings) throws IOException;
+
+    /**
+     * Sets the dictionary ids this store still holds, so they are not reclaimed. Called by the saver
+     * thread after {@link #compact}.
+     */
+    void markCommands(BitSet live);
+
+    /**
+     * Returns whether other processes write to this store too. A resident record of a player who left
+     * may then be out of date when they return, and is read again.
+     */
+    boolean shared();
+
+    /**
+     * Writes what is still queued and releases files and connections.
+     */
+    void close() throws IOException;
+}
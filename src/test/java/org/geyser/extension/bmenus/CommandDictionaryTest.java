@@ -0,0 +1,43 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CommandDictionaryTest {
+
+    @Test
+    void reclaimKeepsLiveAndRecentIds() {
+        CommandDictionary dictionary = new CommandDictionary();
+        int spawn = dictionary.intern("spawn");
+        int typed = dictionary.intern("msg Steve hello");
+        BitSet live = new BitSet();
+        live.set(spawn);
+
+        // both were interned in the current interval
+        assertEquals(0, dictionary.reclaim(live));
+        assertEquals(1, dictionary.reclaim(live));
+        assertNull(dictionary.command(typed));
+        assertEquals("spawn", dictionary.command(spawn));
+        assertEquals(spawn, dictionary.intern("spawn"));
+        assertEquals(1, dictionary.count());
+    }
+
+    @Test
+    void freedIdsAreReused() {
+        CommandDictionary dictionary = new CommandDictionary();
+        for (int i = 0; i < 1000; i++) {
+            dictionary.intern("msg Steve " + i);
+            dictionary.reclaim(new BitSet());
+            dictionary.reclaim(new BitSet());
+        }
+        assertEquals(0, dictionary.count());
+        assertEquals(1, dictionary.size());
+        int id = dictionary.intern("home");
+        assertEquals("home", dictionary.command(id));
+        assertEquals("home", dictionary.label(id, command -> command));
+    }
+}
@@ -0,0 +1,71 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.connection.GeyserConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CommandDispatcherTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final CommandDispatcher dispatcher = new CommandDispatcher(scheduler,
+            (connection, command) -> sent.add(connection.name() + ": " + command));
+    private final UUID uuid = UUID.randomUUID();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void dispatchAfterRemoveDoesNotReachTheRejoinedPlayer() {
+        GeyserConnection first = connection("first");
+        dispatcher.dispatch(first, List.of("home"), 0L);
+        dispatcher.remove(first);
+        // a lane task that was still running when the player left
+        dispatcher.dispatch(first, List.of("spawn"), 0L);
+
+        GeyserConnection second = connection("second");
+        dispatcher.dispatch(second, List.of("warp"), 0L);
+        dispatcher.dispatch(first, List.of("kit"), 0L);
+        dispatcher.dispatch(second, List.of("back"), 0L);
+
+        assertEquals(List.of("first: home", "second: warp", "second: back"), sent);
+    }
+
+    @Test
+    void removingTheOldConnectionKeepsTheNewQueue() throws Exception {
+        GeyserConnection first = connection("first");
+        GeyserConnection second = connection("second");
+        dispatcher.dispatch(second, List.of("home", "spawn"), 50L);
+        // the old connection's disconnect arrives after the player joined again
+        dispatcher.remove(first);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("second: home", "second: spawn"), sent);
+    }
+
+    private GeyserConnection connection(String name) {
+        return (GeyserConnection) Proxy.newProxyInstance(CommandDispatcherTest.class.getClassLoader(),
+                new Class<?>[]{GeyserConnection.class}, (self, method, args) -> switch (method.getName()) {
+                    case "name" -> name;
+                    case "playerUuid" -> uuid;
+                    case "hashCode" -> System.identityHashCode(self);
+                    case "equals" -> self == args[0];
+                    default -> null;
+                });
+    }
+}
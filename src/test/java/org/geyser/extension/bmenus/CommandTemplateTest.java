@@ -0,0 +1,40 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CommandTemplateTest {
+
+    private final TestExtension extension = new TestExtension(Path.of("."));
+
+    @Test
+    void fillsArgumentsInOrder() {
+        MenuManager.CommandTemplate template =
+                MenuManager.CommandTemplate.parse("msg {\"To\", Input} {\"Text\", Input}", extension);
+        assertEquals("msg Steve hello", template.build(List.of("Steve", "hello")));
+    }
+
+    @Test
+    void typedLineBreaksBecomeSpaces() {
+        MenuManager.CommandTemplate template =
+                MenuManager.CommandTemplate.parse("msg {\"To\", Input} {\"Text\", Input}", extension);
+        assertEquals("msg Steve hi  there /op me", template.build(List.of("Steve", "hi\r\nthere\n/op me")));
+    }
+
+    @Test
+    void typeNamesMatchWithOrWithoutUnderscores() {
+        for (String type : List.of("PlayerList", "PLAYER_LIST", "playerlist", "PlayerSearch", "PLAYER_SEARCH")) {
+            MenuManager.Argument.parse("\"Who\", " + type, extension);
+        }
+        MenuManager.Argument steps = MenuManager.Argument.parse("\"Time\", StepSlider, \"Day, Night\"", extension);
+        assertEquals(List.of("Day", "Night"), steps.options);
+        assertEquals(List.of(), extension.problems);
+
+        MenuManager.Argument.parse("\"Who\", PlayerPicker", extension);
+        assertEquals(1, extension.problems.size());
+    }
+}
@@ -0,0 +1,49 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfigWatcherTest {
+
+    @TempDir
+    Path dataFolder;
+
+    @Test
+    void keepsWatchingAfterMenusDirectoryIsRecreated() throws Exception {
+        Files.writeString(dataFolder.resolve("menus.yml"), String.join("\n",
+                "menus:",
+                "  main:",
+                "    type: simple",
+                "    title: Main",
+                "    buttons:",
+                "      - text: Spawn",
+                "        command: /spawn",
+                ""));
+        TestExtension extension = new TestExtension(dataFolder);
+        MenuManager manager = new MenuManager(extension);
+        manager.loadConfig();
+        try {
+            Path menus = dataFolder.resolve("menus");
+            assertTrue(Files.isDirectory(menus));
+            Files.delete(menus);
+            Thread.sleep(200);
+            Files.createDirectory(menus);
+            Thread.sleep(200);
+            Files.writeString(menus.resolve("broken.yml"), "menus: [not, a, section");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (extension.problems.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(extension.problems.stream().anyMatch(line -> line.contains("broken.yml")),
+                    String.valueOf(extension.problems));
+        } finally {
+            manager.shutdown();
+        }
+    }
+}
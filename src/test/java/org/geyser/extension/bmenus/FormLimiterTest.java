@@ -0,0 +1,47 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FormLimiterTest {
+
+    private static final long DEBOUNCE = 750;
+    private static final long TIMEOUT = 120_000;
+
+    private final FormLimiter limiter = new FormLimiter();
+    private final UUID uuid = UUID.randomUUID();
+
+    private FormLimiter.Decision trigger(long now) {
+        return limiter.tryTrigger(uuid, now, DEBOUNCE, 1, TIMEOUT);
+    }
+
+    @Test
+    void formTimesOutFromItsOwnSendTime() {
+        assertEquals(FormLimiter.Decision.ACCEPTED, trigger(0));
+        limiter.answered(limiter.opened(uuid, 0));
+        // a submenu opened long after the trigger
+        FormLimiter.OpenForm submenu = limiter.opened(uuid, 100_000);
+
+        assertEquals(FormLimiter.Decision.TOO_MANY_FORMS, trigger(TIMEOUT));
+        assertEquals(FormLimiter.Decision.TOO_MANY_FORMS, trigger(100_000 + TIMEOUT - 1));
+        assertEquals(FormLimiter.Decision.ACCEPTED, trigger(100_000 + TIMEOUT));
+
+        // the late answer to the timed out form does not free the one sent since
+        FormLimiter.OpenForm next = limiter.opened(uuid, 100_000 + TIMEOUT);
+        limiter.answered(submenu);
+        assertEquals(FormLimiter.Decision.TOO_MANY_FORMS, trigger(100_000 + TIMEOUT + DEBOUNCE));
+        limiter.answered(next);
+        assertEquals(FormLimiter.Decision.ACCEPTED, trigger(100_000 + TIMEOUT + DEBOUNCE));
+    }
+
+    @Test
+    void playersWhoNeverTriggeredAreNotLimited() {
+        assertNull(limiter.opened(uuid, 0));
+        limiter.answered(null);
+        assertEquals(FormLimiter.Decision.ACCEPTED, trigger(0));
+    }
+}
@@ -0,0 +1,79 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerLanesTest {
+
+    private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+    private final PlayerLanes lanes = new PlayerLanes((thread, error) -> errors.add(error));
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        lanes.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void disconnectWhileDrainingKeepsOneLane() throws Exception {
+        lanes.configure(PlayerLanes.Mode.POOL, 4);
+        UUID uuid = UUID.randomUUID();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        lanes.execute(uuid, () -> {
+            started.countDown();
+            await(release);
+            order.add("first");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        lanes.remove(uuid);
+        // the player reconnects and opens a menu while the old lane is still busy
+        lanes.execute(uuid, () -> {
+            order.add("second");
+            done.countDown();
+        });
+        Thread.sleep(100);
+        assertEquals(List.of(), order);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), order);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lanes.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lanes.size());
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    void idleLaneIsRemovedRightAway() throws Exception {
+        lanes.configure(PlayerLanes.Mode.POOL, 2);
+        UUID uuid = UUID.randomUUID();
+        CountDownLatch done = new CountDownLatch(1);
+        lanes.execute(uuid, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        lanes.remove(uuid);
+        assertEquals(0, lanes.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryClientTest {
+
+    private final CountDownLatch dnsHangs = new CountDownLatch(1);
+    private final AtomicInteger hungLookups = new AtomicInteger();
+    private final QueryClient client = new QueryClient(host -> {
+        if (host.equals("hung.test")) {
+            hungLookups.incrementAndGet();
+            try {
+                dnsHangs.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return InetAddress.getByName(host);
+    });
+
+    @AfterEach
+    void close() {
+        dnsHangs.countDown();
+        client.close();
+    }
+
+    @Test
+    void reusesChallengeTokenWithinItsLifetime() throws Exception {
+        try (QueryStandIn server = QueryStandIn.answering("Alex", "Bob")) {
+            assertEquals(List.of("Alex", "Bob"), client.query("127.0.0.1", server.port(), 1000).get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("Alex", "Bob"), client.query("127.0.0.1", server.port(), 1000).get(5, TimeUnit.SECONDS));
+            assertEquals(1, server.handshakes.get());
+            assertEquals(2, server.stats.get());
+        }
+    }
+
+    @Test
+    void deadTargetTimesOutWithoutDelayingOthers() throws Exception {
+        try (QueryStandIn dead = QueryStandIn.dead(); QueryStandIn live = QueryStandIn.answering("Alex")) {
+            long start = System.nanoTime();
+            CompletableFuture<List<String>> silent = client.query("127.0.0.1", dead.port(), 500);
+            assertEquals(List.of("Alex"), client.query("127.0.0.1", live.port(), 500).get(5, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+            assertTimesOut(silent);
+            assertEquals(1, dead.handshakes.get());
+        }
+    }
+
+    @Test
+    void slowTargetAnswersWithinTimeoutOnly() throws Exception {
+        try (QueryStandIn slow = QueryStandIn.slow(200, "Alex")) {
+            assertTimesOut(client.query("127.0.0.1", slow.port(), 50));
+            // let the late answer drain before asking again
+            Thread.sleep(300);
+            assertEquals(List.of("Alex"), client.query("127.0.0.1", slow.port(), 2000).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void hungLookupOnlyDelaysItsOwnTarget() throws Exception {
+        try (QueryStandIn live = QueryStandIn.answering("Alex")) {
+            CompletableFuture<List<String>> hung = client.query("hung.test", 25565, 200);
+            assertEquals(List.of("Alex"), client.query("127.0.0.1", live.port(), 1000).get(5, TimeUnit.SECONDS));
+            assertTimesOut(hung);
+            // the next query waits for the lookup that is still running instead of starting another
+            assertTimesOut(client.query("hung.test", 25565, 200));
+            assertEquals(1, hungLookups.get());
+        }
+    }
+
+    private static void assertTimesOut(CompletableFuture<List<String>> query) {
+        ExecutionException error = assertThrows(ExecutionException.class, () -> query.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+    }
+}
@@ -0,0 +1,111 @@
+package org.geyser.extension.bmenus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A GS4 query server on a local UDP port that answers with a fixed player list, optionally after a
+ * delay, or never answers at all.
+ */
+final class QueryStandIn implements AutoCloseable {
+
+    private static final int TOKEN = 9513307;
+
+    final AtomicInteger handshakes = new AtomicInteger();
+    final AtomicInteger stats = new AtomicInteger();
+    private final DatagramSocket socket;
+    private final List<String> names;
+    private final boolean answers;
+    private final long delayMillis;
+    private final Thread thread;
+
+    private QueryStandIn(List<String> names, boolean answers, long delayMillis) throws SocketException {
+        this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.names = names;
+        this.answers = answers;
+        this.delayMillis = delayMillis;
+        this.thread = new Thread(this::serve, "QueryStandIn-" + socket.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static QueryStandIn answering(String... names) throws SocketException {
+        return new QueryStandIn(List.of(names), true, 0L);
+    }
+
+    static QueryStandIn slow(long delayMillis, String... names) throws SocketException {
+        return new QueryStandIn(List.of(names), true, delayMillis);
+    }
+
+    static QueryStandIn dead() throws SocketException {
+        return new QueryStandIn(List.of(), false, 0L);
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    String target() {
+        return "127.0.0.1:" + port();
+    }
+
+    private void serve() {
+        byte[] data = new byte[1500];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            ByteBuffer request = ByteBuffer.wrap(data, 0, packet.getLength());
+            if (request.remaining() < 7 || request.get() != (byte) 0xFE || request.get() != (byte) 0xFD) {
+                continue;
+            }
+            byte type = request.get();
+            int session = request.getInt();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            reply.write(type);
+            reply.writeBytes(ByteBuffer.allocate(4).putInt(session).array());
+            if (type == 0x09) {
+                handshakes.incrementAndGet();
+                reply.writeBytes((TOKEN + "\0").getBytes(StandardCharsets.US_ASCII));
+            } else {
+                stats.incrementAndGet();
+                if (request.remaining() < 4 || request.getInt() != TOKEN) {
+                    continue;
+                }
+                reply.writeBytes("splitnum\0\u0080\0hostname\0A Server\0\0\u0001player_\0\0".getBytes(StandardCharsets.ISO_8859_1));
+                for (String name : names) {
+                    reply.writeBytes((name + "\0").getBytes(StandardCharsets.UTF_8));
+                }
+                reply.write(0);
+            }
+            if (!answers) {
+                continue;
+            }
+            try {
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                byte[] bytes = reply.toByteArray();
+                socket.send(new DatagramPacket(bytes, bytes.length, packet.getSocketAddress()));
+            } catch (IOException | InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
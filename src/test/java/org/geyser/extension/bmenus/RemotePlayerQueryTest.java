@@ -0,0 +1,67 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Queries several backends through the manager's background refresh and checks that each backs off on
+ * its own.
+ */
+class RemotePlayerQueryTest {
+
+    @TempDir
+    Path dataFolder;
+
+    @Test
+    void deadBackendBacksOffWhileOthersKeepRefreshing() throws Exception {
+        try (QueryStandIn live = QueryStandIn.answering("Alex", "Bob");
+             QueryStandIn slow = QueryStandIn.slow(600, "Carol");
+             QueryStandIn dead = QueryStandIn.dead()) {
+            Files.writeString(dataFolder.resolve("menus.yml"), String.join("\n",
+                    "players:",
+                    "  background-refresh:",
+                    "    enabled: true",
+                    "    interval-seconds: 1",
+                    "    pause-when-empty: false",
+                    "  query:",
+                    "    timeout-ms: 300",
+                    "    retries: 1",
+                    "    retry-seconds: 60",
+                    "    targets:",
+                    "      - " + live.target(),
+                    "      - " + slow.target(),
+                    "      - " + dead.target(),
+                    "menus:",
+                    "  main:",
+                    "    type: simple",
+                    "    title: Main",
+                    "    buttons:",
+                    "      - text: Spawn",
+                    "        command: /spawn",
+                    ""));
+            TestExtension extension = new TestExtension(dataFolder);
+            MenuManager manager = new MenuManager(extension);
+            manager.loadConfig();
+            try {
+                Thread.sleep(3500);
+                assertTrue(live.stats.get() >= 3, "live backend refreshed " + live.stats.get() + " times");
+                // one attempt and one retry each, then nothing until retry-seconds have passed
+                assertEquals(2, dead.handshakes.get());
+                assertEquals(2, slow.handshakes.get());
+                assertTrue(manager.stats().stream().anyMatch(line -> line.startsWith("Player list: 0 online, 2 listed")),
+                        String.valueOf(manager.stats()));
+            } finally {
+                manager.shutdown();
+            }
+            assertEquals(2, extension.problems.size(), String.valueOf(extension.problems));
+            assertTrue(extension.problems.stream().allMatch(line -> line.contains("timed out")), String.valueOf(extension.problems));
+        }
+    }
+}
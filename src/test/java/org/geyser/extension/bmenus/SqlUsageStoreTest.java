@@ -0,0 +1,240 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the SQL usage store against an embedded H2 database in a temporary folder.
+ */
+class SqlUsageStoreTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path dataFolder;
+
+    private TestExtension extension;
+    private final List<SqlUsageStore> stores = new ArrayList<>();
+    private final UUID alex = UUID.randomUUID();
+
+    @BeforeEach
+    void setUp() {
+        extension = new TestExtension(dataFolder);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        for (SqlUsageStore store : stores) {
+            store.close();
+        }
+        assertEquals(List.of(), extension.problems);
+    }
+
+    @Test
+    void appendedUsesAreLoadedOnceCommitted() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 10);
+        SqlUsageStore store = open(dictionary, settings);
+        long now = System.currentTimeMillis();
+
+        long sequence = store.append(alex, "home", now - 1000);
+        store.append(alex, "home", now);
+        store.append(alex, "spawn", now);
+        assertNull(store.load(alex));
+        assertTrue(store.persisted() < sequence);
+
+        store.commit(settings);
+        assertTrue(store.persisted() >= sequence);
+        assertEquals(Map.of("home", 2, "spawn", 1), counts(store.load(alex), dictionary));
+
+        store.append(alex, "home", now + 1);
+        store.commit(settings);
+        assertEquals(Map.of("home", 3, "spawn", 1), counts(store.load(alex), dictionary));
+        assertNull(store.load(UUID.randomUUID()));
+    }
+
+    @Test
+    void closeWritesQueuedUses() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 10);
+        SqlUsageStore store = open(dictionary, settings);
+        store.append(alex, "home", System.currentTimeMillis());
+        store.close();
+        stores.remove(store);
+
+        SqlUsageStore reopened = open(dictionary, settings);
+        assertEquals(Map.of("home", 1), counts(reopened.load(alex), dictionary));
+    }
+
+    @Test
+    void compactDeletesExpiredRows() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 10);
+        SqlUsageStore store = open(dictionary, settings);
+        long now = System.currentTimeMillis();
+        store.append(alex, "home", now - 40 * DAY);
+        store.append(alex, "spawn", now);
+        store.compact(settings);
+        assertEquals(Map.of("spawn", 1), counts(store.load(alex), dictionary));
+    }
+
+    @Test
+    void compactDeletesFadedRowsWithFrecency() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = new PlayerUsage.Settings(dictionary, List.of(), 10, 30 * DAY,
+                PlayerUsage.Ranking.FRECENCY, DAY, 0.05f);
+        SqlUsageStore store = open(dictionary, settings);
+        long now = System.currentTimeMillis();
+        // five half-lives old: 1/32 is below min-score
+        store.append(alex, "home", now - 5 * DAY);
+        store.append(alex, "spawn", now - DAY);
+        store.compact(settings);
+        assertEquals(Map.of("spawn", 1), counts(store.load(alex), dictionary));
+    }
+
+    @Test
+    void flushTrimsToMaxCommands() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 3);
+        SqlUsageStore store = open(dictionary, settings);
+        long now = System.currentTimeMillis();
+        for (int command = 1; command <= 5; command++) {
+            for (int use = 0; use < command; use++) {
+                store.append(alex, "cmd " + command, now + use);
+            }
+        }
+        store.commit(settings);
+        assertEquals(Map.of("cmd 5", 5, "cmd 4", 4, "cmd 3", 3), counts(store.load(alex), dictionary));
+
+        // a new command pushes out the lowest ranked one
+        for (int use = 0; use < 4; use++) {
+            store.append(alex, "cmd 6", now + use);
+        }
+        store.commit(settings);
+        assertEquals(Map.of("cmd 5", 5, "cmd 4", 4, "cmd 6", 4), counts(store.load(alex), dictionary));
+    }
+
+    @Test
+    void storesSharingOneDatabaseAddUp() throws Exception {
+        CommandDictionary first = new CommandDictionary();
+        CommandDictionary second = new CommandDictionary();
+        PlayerUsage.Settings firstSettings = countSettings(first, 50);
+        PlayerUsage.Settings secondSettings = countSettings(second, 50);
+        SqlUsageStore one = open(first, firstSettings);
+        SqlUsageStore two = open(second, secondSettings);
+
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        List<Future<?>> proxies = new ArrayList<>();
+        for (SqlUsageStore store : List.of(one, two)) {
+            PlayerUsage.Settings settings = store == one ? firstSettings : secondSettings;
+            proxies.add(threads.submit(() -> {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < 25; i++) {
+                        store.append(alex, "cmd " + (i % 5), System.currentTimeMillis());
+                    }
+                    store.commit(settings);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> proxy : proxies) {
+            proxy.get(60, TimeUnit.SECONDS);
+        }
+        threads.shutdown();
+
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            expected.put("cmd " + i, 2 * 20 * 5);
+        }
+        assertEquals(expected, counts(one.load(alex), first));
+        assertEquals(expected, counts(two.load(alex), second));
+    }
+
+    @Test
+    void commandsLongerThanTheColumnAreNotStored() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 10);
+        SqlUsageStore store = open(dictionary, settings);
+        long now = System.currentTimeMillis();
+
+        String macro = "say " + "x".repeat(2000);
+        store.append(alex, macro, now);
+        long sequence = store.append(alex, "home", now);
+        store.append(alex, macro, now);
+        store.commit(settings);
+        assertTrue(store.persisted() >= sequence);
+        assertEquals(Map.of("home", 1), counts(store.load(alex), dictionary));
+
+        store.append(alex, "home", now + 1);
+        store.commit(settings);
+        assertEquals(Map.of("home", 2), counts(store.load(alex), dictionary));
+        assertEquals(1, extension.problems.size(), extension.problems.toString());
+        extension.problems.clear();
+    }
+
+    @Test
+    void rowTheDatabaseRefusesIsDroppedAndTheRestWritten() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = countSettings(dictionary, 10);
+        SqlUsageStore store = open(dictionary, settings);
+        try (Connection connection = DriverManager.getConnection(
+                "jdbc:h2:file:" + dataFolder.resolve("usage-db").toAbsolutePath() + ";AUTO_SERVER=TRUE");
+             Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE bmenus_usage ADD CONSTRAINT no_refused CHECK (command <> 'refused')");
+        }
+        long now = System.currentTimeMillis();
+
+        store.append(alex, "home", now);
+        store.append(alex, "refused", now);
+        long sequence = store.append(alex, "spawn", now);
+        store.commit(settings);
+        assertTrue(store.persisted() >= sequence);
+        assertEquals(Map.of("home", 1, "spawn", 1), counts(store.load(alex), dictionary));
+
+        store.append(alex, "home", now + 1);
+        store.commit(settings);
+        assertEquals(Map.of("home", 2, "spawn", 1), counts(store.load(alex), dictionary));
+        assertEquals(1, extension.problems.size(), extension.problems.toString());
+        extension.problems.clear();
+    }
+
+    private SqlUsageStore open(CommandDictionary dictionary, PlayerUsage.Settings settings) throws Exception {
+        SqlUsageStore store = new SqlUsageStore(extension, dictionary, new Metrics(), null,
+                SqlUsageStore.DEFAULT_DRIVER, null, null);
+        store.open(settings);
+        stores.add(store);
+        return store;
+    }
+
+    private static PlayerUsage.Settings countSettings(CommandDictionary dictionary, int maxCommands) {
+        return new PlayerUsage.Settings(dictionary, List.of(), maxCommands, 30 * DAY);
+    }
+
+    private static Map<String, Integer> counts(PlayerUsage record, CommandDictionary dictionary) {
+        Map<String, Integer> counts = new HashMap<>();
+        if (record != null) {
+            record.forEach((id, count, last, score) -> counts.put(dictionary.command(id), count));
+        }
+        return counts;
+    }
+}
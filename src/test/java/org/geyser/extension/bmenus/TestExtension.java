@@ -0,0 +1,52 @@
+package org.geyser.extension.bmenus;
+
+import org.geysermc.geyser.api.GeyserApi;
+import org.geysermc.geyser.api.extension.Extension;
+import org.geysermc.geyser.api.extension.ExtensionLogger;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An extension stand-in for tests: a data folder, no online players, and a logger that keeps every
+ * warning and error so tests can assert on them.
+ */
+final class TestExtension implements Extension {
+
+    final List<String> problems = new CopyOnWriteArrayList<>();
+    private final Path dataFolder;
+    private final ExtensionLogger logger;
+    private final GeyserApi api;
+
+    TestExtension(Path dataFolder) {
+        this.dataFolder = dataFolder;
+        this.logger = (ExtensionLogger) Proxy.newProxyInstance(TestExtension.class.getClassLoader(),
+                new Class<?>[]{ExtensionLogger.class}, (self, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("error") || name.equals("warning") || name.equals("severe")) {
+                        problems.add(name + ": " + args[0] + (args.length > 1 ? " " + args[1] : ""));
+                    }
+                    return method.getReturnType() == boolean.class ? false : null;
+                });
+        this.api = (GeyserApi) Proxy.newProxyInstance(TestExtension.class.getClassLoader(),
+                new Class<?>[]{GeyserApi.class},
+                (self, method, args) -> method.getName().equals("onlineConnections") ? List.of() : null);
+    }
+
+    @Override
+    public Path dataFolder() {
+        return dataFolder;
+    }
+
+    @Override
+    public ExtensionLogger logger() {
+        return logger;
+    }
+
+    @Override
+    public GeyserApi geyserApi() {
+        return api;
+    }
+}
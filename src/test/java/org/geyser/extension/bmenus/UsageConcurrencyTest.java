@@ -0,0 +1,149 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records usage, reads the Common menu and saves from separate threads at once, the way command
+ * handlers, form opens and the saver thread do, and checks that no increment is lost or counted twice.
+ */
+class UsageConcurrencyTest {
+
+    private static final int PLAYERS = 20;
+    private static final int COMMANDS = 30;
+    private static final int RECORDERS = 8;
+    private static final int RECORDS_PER_THREAD = 20_000;
+
+    @TempDir
+    Path dataFolder;
+
+    @Test
+    void recordTopAndSaveConcurrently() throws Exception {
+        TestExtension extension = new TestExtension(dataFolder);
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = new PlayerUsage.Settings(dictionary, List.of("spawn", "home"), 50,
+                TimeUnit.DAYS.toMillis(30));
+        FileUsageStore store = new FileUsageStore(extension, dictionary, new Metrics());
+        store.configure(UsageJournal.FsyncPolicy.NEVER, 1000, 16 * 1024, 2);
+        store.open(settings);
+
+        UUID[] players = new UUID[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = UUID.randomUUID();
+        }
+        Map<UUID, PlayerUsage> usage = new ConcurrentHashMap<>();
+        Map<UUID, Map<String, AtomicInteger>> expected = new ConcurrentHashMap<>();
+        AtomicBoolean recording = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(RECORDERS + 3);
+        List<Future<?>> recorders = new ArrayList<>();
+        List<Future<?>> others = new ArrayList<>();
+
+        for (int t = 0; t < RECORDERS; t++) {
+            recorders.add(threads.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                    UUID uuid = players[random.nextInt(PLAYERS)];
+                    String command = "cmd " + random.nextInt(COMMANDS);
+                    long now = System.currentTimeMillis();
+                    PlayerUsage record = usage.computeIfAbsent(uuid, id -> PlayerUsage.withDefaults(settings));
+                    assertTrue(record.record(dictionary.intern(command), now, settings,
+                            () -> store.append(uuid, command, now)));
+                    expected.computeIfAbsent(uuid, id -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(command, c -> new AtomicInteger()).incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            others.add(threads.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (recording.get()) {
+                    PlayerUsage record = usage.get(players[random.nextInt(PLAYERS)]);
+                    if (record == null) {
+                        continue;
+                    }
+                    int[] top = record.top(10, System.currentTimeMillis(), settings);
+                    assertTrue(top.length <= 10);
+                    Set<Integer> distinct = new HashSet<>();
+                    for (int id : top) {
+                        assertTrue(distinct.add(id), "duplicate command in top list");
+                    }
+                }
+                return null;
+            }));
+        }
+        others.add(threads.submit(() -> {
+            start.await();
+            int round = 0;
+            while (recording.get()) {
+                store.commit(settings);
+                if (++round % 8 == 0) {
+                    store.compact(settings);
+                }
+            }
+            return null;
+        }));
+
+        start.countDown();
+        for (Future<?> recorder : recorders) {
+            recorder.get(60, TimeUnit.SECONDS);
+        }
+        recording.set(false);
+        for (Future<?> other : others) {
+            other.get(60, TimeUnit.SECONDS);
+        }
+        threads.shutdown();
+        store.compact(settings);
+        store.close();
+
+        CommandDictionary reloadedDictionary = new CommandDictionary();
+        PlayerUsage.Settings reloadedSettings = new PlayerUsage.Settings(reloadedDictionary,
+                List.of("spawn", "home"), 50, TimeUnit.DAYS.toMillis(30));
+        FileUsageStore reopened = new FileUsageStore(extension, reloadedDictionary, new Metrics());
+        reopened.open(reloadedSettings);
+        for (UUID uuid : players) {
+            Map<String, Integer> want = new HashMap<>();
+            expected.getOrDefault(uuid, Map.of()).forEach((command, count) -> want.put(command, count.get()));
+            assertEquals(want, counts(usage.get(uuid), dictionary), "resident counts for " + uuid);
+            assertEquals(want, counts(reopened.load(uuid), reloadedDictionary), "stored counts for " + uuid);
+        }
+        reopened.close();
+        assertEquals(List.of(), extension.problems);
+    }
+
+    private static Map<String, Integer> counts(PlayerUsage record, CommandDictionary dictionary) {
+        Map<String, Integer> counts = new HashMap<>();
+        if (record != null) {
+            record.forEach((id, count, last, score) -> {
+                if (count > 0) {
+                    counts.put(dictionary.command(id), count);
+                }
+            });
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,103 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the heap retained by the usage records of 100,000 synthetic players and compares it with
+ * the per-player string maps they replaced.
+ */
+class UsageFootprintTest {
+
+    private static final int PLAYERS = 100_000;
+    // the string maps take several times more; a smaller sample keeps the test heap modest
+    private static final int MAP_PLAYERS = 20_000;
+    private static final int COMMANDS = 20;
+    private static final int POOL = 200;
+
+    @Test
+    void recordsTakeAFractionOfStringMaps() {
+        CommandDictionary dictionary = new CommandDictionary();
+        List<String> defaults = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            defaults.add("default " + i);
+        }
+        PlayerUsage.Settings settings = new PlayerUsage.Settings(dictionary, defaults, 50, TimeUnit.DAYS.toMillis(30));
+        String[] pool = new String[POOL];
+        int[] ids = new int[POOL];
+        for (int i = 0; i < POOL; i++) {
+            pool[i] = "command " + i + " {Target, PLAYER_LIST}";
+            ids[i] = dictionary.intern(pool[i]);
+        }
+        long now = System.currentTimeMillis();
+
+        long before = usedHeap();
+        Map<UUID, PlayerUsage> records = new HashMap<>(PLAYERS * 2);
+        Random random = new Random(42L);
+        for (int player = 0; player < PLAYERS; player++) {
+            PlayerUsage usage = PlayerUsage.withDefaults(settings);
+            for (int i = 0; i < COMMANDS; i++) {
+                usage.record(ids[random.nextInt(POOL)], now - random.nextInt(1_000_000), settings, null);
+            }
+            records.put(new UUID(player, player), usage);
+        }
+        long recordBytes = (usedHeap() - before) / PLAYERS;
+        Reference.reachabilityFence(records);
+        records = null;
+
+        before = usedHeap();
+        Map<UUID, Map<String, Integer>> counts = new HashMap<>(MAP_PLAYERS * 2);
+        Map<UUID, Map<String, Long>> lastUsed = new HashMap<>(MAP_PLAYERS * 2);
+        random = new Random(42L);
+        for (int player = 0; player < MAP_PLAYERS; player++) {
+            Map<String, Integer> playerCounts = new LinkedHashMap<>();
+            Map<String, Long> playerLastUsed = new HashMap<>();
+            for (String command : defaults) {
+                playerCounts.put(command, 0);
+            }
+            for (int i = 0; i < COMMANDS; i++) {
+                String command = pool[random.nextInt(POOL)];
+                playerCounts.merge(command, 1, Integer::sum);
+                playerLastUsed.put(command, now - random.nextInt(1_000_000));
+            }
+            UUID uuid = new UUID(player, player);
+            counts.put(uuid, playerCounts);
+            lastUsed.put(uuid, playerLastUsed);
+        }
+        long mapBytes = (usedHeap() - before) / MAP_PLAYERS;
+        Reference.reachabilityFence(counts);
+        Reference.reachabilityFence(lastUsed);
+
+        System.out.printf("%,d players x %d commands: %,d bytes per player, %,d with string maps%n",
+                PLAYERS, COMMANDS, recordBytes, mapBytes);
+        assertTrue(recordBytes * 2 < mapBytes, recordBytes + " bytes per record, " + mapBytes + " with maps");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds let the collector settle; keep the lowest reading
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,72 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UsageJournalTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void appendedRecordNeverLandsAfterReportedSegment() throws Exception {
+        TestExtension extension = new TestExtension(folder);
+        UsageJournal journal = new UsageJournal(extension, folder);
+        journal.configure(UsageJournal.FsyncPolicy.NEVER, 1000);
+        journal.open(0, (uuid, command, time) -> { });
+
+        Map<String, Long> reported = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<?>> appenders = new ArrayList<>();
+        UUID uuid = UUID.randomUUID();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            appenders.add(threads.submit(() -> {
+                start.await();
+                for (int i = 0; i < 50_000; i++) {
+                    String command = thread + ":" + i;
+                    journal.append(uuid, command, i);
+                    reported.put(command, journal.activeId());
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        long sealed = 0;
+        while (!appenders.stream().allMatch(Future::isDone)) {
+            journal.flush();
+            sealed = journal.seal();
+        }
+        for (Future<?> appender : appenders) {
+            appender.get(60, TimeUnit.SECONDS);
+        }
+        threads.shutdown();
+        journal.close();
+
+        Map<String, Long> landed = new ConcurrentHashMap<>();
+        for (long id = 1; id <= sealed + 1; id++) {
+            long segment = id;
+            journal.replaySealed(id - 1, id, (u, command, time) -> landed.put(command, segment));
+        }
+        assertEquals(reported.size(), landed.size());
+        reported.forEach((command, segment) -> assertTrue(landed.get(command) <= segment,
+                command + " reported segment " + segment + " but landed in " + landed.get(command)));
+        assertEquals(List.of(), extension.problems);
+    }
+}
@@ -0,0 +1,156 @@
+package org.geyser.extension.bmenus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UsageSnapshotTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @TempDir
+    Path folder;
+
+    private final UUID alex = new UUID(1, 1);
+    private final UUID steve = new UUID(2, 2);
+
+    @Test
+    void roundTripsCurrentVersion() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = settings(dictionary);
+        Path path = folder.resolve("usage.dat");
+        UsageSnapshot.write(path, null, players(settings), 7L, dictionary, 0);
+
+        CommandDictionary reloaded = new CommandDictionary();
+        UsageSnapshot.Index index = UsageSnapshot.open(path, reloaded);
+        assertEquals(7L, index.foldedSegment());
+        assertEquals(entries(players(settings).get(alex), dictionary), entries(index.load(alex), reloaded));
+        assertEquals(entries(players(settings).get(steve), dictionary), entries(index.load(steve), reloaded));
+        assertNull(index.load(new UUID(3, 3)));
+    }
+
+    @Test
+    void loadsVersionTwoWithoutChecksum() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = settings(dictionary);
+        Path path = folder.resolve("usage.dat");
+        UsageSnapshot.write(path, null, players(settings), 7L, dictionary, 0);
+        downgradeToVersionTwo(path);
+
+        CommandDictionary reloaded = new CommandDictionary();
+        UsageSnapshot.Index index = UsageSnapshot.open(path, reloaded);
+        assertEquals(7L, index.foldedSegment());
+        assertEquals(entries(players(settings).get(alex), dictionary), entries(index.load(alex), reloaded));
+        assertEquals(entries(players(settings).get(steve), dictionary), entries(index.load(steve), reloaded));
+    }
+
+    @Test
+    void storeKeepsVersionTwoSnapshotOnUpgrade() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = settings(dictionary);
+        Path path = folder.resolve("usage.dat");
+        UsageSnapshot.write(path, null, players(settings), 0L, dictionary, 0);
+        downgradeToVersionTwo(path);
+
+        TestExtension extension = new TestExtension(folder);
+        CommandDictionary reloaded = new CommandDictionary();
+        PlayerUsage.Settings reloadedSettings = settings(reloaded);
+        FileUsageStore store = new FileUsageStore(extension, reloaded, new Metrics());
+        store.open(reloadedSettings);
+        assertEquals(entries(players(settings).get(alex), dictionary), entries(store.load(alex), reloaded));
+
+        // the next compaction rewrites it in the current version
+        store.append(alex, "spawn", NOW + 1);
+        store.compact(reloadedSettings);
+        store.close();
+        assertEquals(UsageSnapshot.VERSION, ByteBuffer.wrap(Files.readAllBytes(path)).getInt(4));
+        assertFalse(Files.exists(folder.resolve("usage.dat.corrupt")));
+        assertEquals(List.of(), extension.problems);
+    }
+
+    @Test
+    void rejectsVersionTwoWithImpossibleCommandTable() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        Path path = folder.resolve("usage.dat");
+        UsageSnapshot.write(path, null, players(settings(dictionary)), 0L, dictionary, 0);
+        downgradeToVersionTwo(path);
+        byte[] valid = Files.readAllBytes(path);
+
+        // command count, then the length of the first command
+        for (int[] corruption : new int[][]{{16, Integer.MAX_VALUE}, {16, -1}, {20, Integer.MAX_VALUE}, {20, -5}}) {
+            byte[] data = valid.clone();
+            ByteBuffer.wrap(data).putInt(corruption[0], corruption[1]);
+            Files.write(path, data);
+            assertThrows(IOException.class, () -> UsageSnapshot.open(path, new CommandDictionary()),
+                    "value " + corruption[1] + " at " + corruption[0]);
+        }
+    }
+
+    @Test
+    void storeFallsBackToBackupWhenCommandTableIsCorrupt() throws Exception {
+        CommandDictionary dictionary = new CommandDictionary();
+        PlayerUsage.Settings settings = settings(dictionary);
+        Path path = folder.resolve("usage.dat");
+        UsageSnapshot.write(path, null, players(settings), 0L, dictionary, 1);
+        UsageSnapshot.write(path, UsageSnapshot.open(path, dictionary), Map.of(), 0L, dictionary, 1);
+        downgradeToVersionTwo(path);
+        byte[] data = Files.readAllBytes(path);
+        ByteBuffer.wrap(data).putInt(16, Integer.MAX_VALUE);
+        Files.write(path, data);
+
+        TestExtension extension = new TestExtension(folder);
+        CommandDictionary reloaded = new CommandDictionary();
+        FileUsageStore store = new FileUsageStore(extension, reloaded, new Metrics());
+        store.configure(UsageJournal.FsyncPolicy.NEVER, 1000, 16 * 1024, 1);
+        store.open(settings(reloaded));
+        assertEquals(entries(players(settings).get(alex), dictionary), entries(store.load(alex), reloaded));
+        store.close();
+        assertTrue(Files.exists(folder.resolve("usage.dat.corrupt")));
+        assertFalse(extension.problems.isEmpty());
+    }
+
+    private static PlayerUsage.Settings settings(CommandDictionary dictionary) {
+        return new PlayerUsage.Settings(dictionary, List.of("spawn"), 20, TimeUnit.DAYS.toMillis(3650),
+                PlayerUsage.Ranking.FRECENCY, TimeUnit.DAYS.toMillis(3), 0.0f);
+    }
+
+    private Map<UUID, PlayerUsage> players(PlayerUsage.Settings settings) {
+        PlayerUsage first = PlayerUsage.withDefaults(settings);
+        first.record(settings.dictionary.intern("home"), NOW - 5000, settings, null);
+        first.record(settings.dictionary.intern("home"), NOW - 1000, settings, null);
+        first.record(settings.dictionary.intern("msg Steve hi"), NOW, settings, null);
+        PlayerUsage second = PlayerUsage.withDefaults(settings);
+        second.record(settings.dictionary.intern("spawn"), NOW - 2000, settings, null);
+        return Map.of(alex, first, steve, second);
+    }
+
+    private static List<String> entries(PlayerUsage record, CommandDictionary dictionary) {
+        List<String> entries = new ArrayList<>();
+        record.forEach((id, count, last, score) ->
+                entries.add(dictionary.command(id) + "=" + count + "@" + last + "/" + score));
+        return entries;
+    }
+
+    private static void downgradeToVersionTwo(Path path) throws Exception {
+        byte[] data = Files.readAllBytes(path);
+        byte[] older = Arrays.copyOf(data, data.length - Integer.BYTES);
+        ByteBuffer.wrap(older).putInt(Integer.BYTES, 2);
+        Files.write(path, older);
+    }
+}